@@ -27,10 +27,16 @@ import com.vaadin.shared.Registration;
 import com.vaadin.ui.*;
 import com.vaadin.util.ReflectTools;
 import org.vaadin.alump.ckeditor.client.VCKEditorTextField;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorClientRpc;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorServerRpc;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorState;
+import org.vaadin.alump.ckeditor.client.shared.TextChunk;
+import org.vaadin.alump.ckeditor.client.shared.TextPatch;
 
 import java.io.*;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.logging.Logger;
 
 /**
  * Server side component for the VCKEditorTextField widget. Is abstract as does not contain definition from where
@@ -40,26 +46,126 @@ import java.util.*;
  */
 @JavaScript({"editor/ckeditor.js", "vaadin-save-plugin.js"})
 public abstract class AbstractCKEditorTextField extends AbstractField<String>
-    implements FieldEvents.BlurNotifier, FieldEvents.FocusNotifier, Component.Focusable, LegacyComponent
+    implements FieldEvents.BlurNotifier, FieldEvents.FocusNotifier, Component.Focusable
 {
+  /**
+   * Servlet init parameter (or system property) for the number of detached editors each browser keeps for reuse.
+   * Defaults to 0, detached editors are destroyed then.
+   */
+  public static final String PARAMETER_POOL_SIZE = "ckeditor.poolSize";
+
+  /**
+   * Servlet init parameter (or system property) for the minimum length of texts, inserted HTML and configs that are
+   * sent compressed between client and server. Defaults to 0, nothing is compressed then.
+   * See {@link CKEditorCompression} for the metrics.
+   */
+  public static final String PARAMETER_COMPRESSION_THRESHOLD = "ckeditor.compressionThreshold";
+
+  /**
+   * Servlet init parameter (or system property) for the maximum length of a request from the client for texts.
+   * Longer texts are sent in chunks of that length in the background, and the value only changes once all of them
+   * arrived. Defaults to 0, texts are always sent in one request then.
+   */
+  public static final String PARAMETER_CHUNK_SIZE = "ckeditor.chunkSize";
+
+  /**
+   * Servlet init parameter (or system property) for the maximum length of a text the client sends, in one request or
+   * in chunks. Longer texts are rejected. Defaults to {@link #DEFAULT_MAX_TEXT_LENGTH}.
+   */
+  public static final String PARAMETER_MAX_TEXT_LENGTH = "ckeditor.maxTextLength";
+  public static final int DEFAULT_MAX_TEXT_LENGTH = 16 * 1024 * 1024;
+
+  /**
+   * Used for fields without a config, the editor then runs with the defaults of the CKEditor build
+   */
+  private static final CKEditorConfig DEFAULT_CONFIG = new CKEditorConfig().freeze();
+
   protected LinkedList<VaadinSaveListener> vaadinSaveListenerList;
   protected String value;
   private CKEditorConfig config;
   private String version = "unknown";
-  private String insertText = null;
-  private String insertHtml = null;
-  private boolean protectedBody = false;
-  private boolean viewWithoutEditor = false;
-  private boolean focusRequested = false;
-  private boolean immediate = false;
-  private boolean textIsDirty;
+  private ConfigUpdate lastConfigUpdate;
+  private SyncPolicy syncPolicy = SyncPolicy.WITH_NEXT_REQUEST;
+  private boolean textResendRequested;
+  private String clientText; // the text the client has, null if unknown
+  // Version of the value, counts the changes made on the server. Changes made by the client don't need to be sent back.
+  private int textVersion;
+  private int clientTextVersion = -1; // the version the client has, -1 if unknown
+  private boolean settingClientText;
+  private CKEditorTextTransfer textTransfer; // a text the client sends in chunks
 
   protected AbstractCKEditorTextField()
   {
+    registerRpc(new CKEditorServerRpc()
+    {
+      @Override
+      public void textChanged(int version, String text, String patch)
+      {
+        receiveText(version, text, patch);
+      }
+
+      @Override
+      public void textChangedLater(int version, String text, String patch)
+      {
+        receiveText(version, text, patch);
+      }
+
+      @Override
+      public void textChunk(int version, String chunk)
+      {
+        receiveChunk(version, chunk);
+      }
+
+      @Override
+      public void requestText()
+      {
+        // The client could not apply our last patch
+        clientText = null;
+        clientTextVersion = -1;
+        markAsDirty();
+      }
+
+      @Override
+      public void selectionChanged(String selectedHtml)
+      {
+        fireEvent(new SelectionChangeEvent(AbstractCKEditorTextField.this, selectedHtml == null ? "" : selectedHtml));
+      }
+
+      @Override
+      public void save()
+      {
+        if (!isReadOnly())
+          notifyVaadinSaveListeners();
+      }
+
+      @Override
+      public void focus()
+      {
+        fireEvent(new FocusEvent(AbstractCKEditorTextField.this));
+      }
+
+      @Override
+      public void blur()
+      {
+        fireEvent(new BlurEvent(AbstractCKEditorTextField.this));
+      }
+
+      @Override
+      public void editorReady(String version)
+      {
+        AbstractCKEditorTextField.this.version = version;
+      }
+
+      @Override
+      public void configUpdated(String configId, boolean rebuilt)
+      {
+        lastConfigUpdate = rebuilt ? ConfigUpdate.REBUILD : ConfigUpdate.LIVE;
+        fireEvent(new ConfigUpdateEvent(AbstractCKEditorTextField.this, lastConfigUpdate));
+      }
+    });
     super.setValue("");
     setWidth(100, Unit.PERCENTAGE);
     setHeight(300, Unit.PIXELS);
-    CKEditorDependencyManager.registerDependencies();
   }
 
   protected AbstractCKEditorTextField(CKEditorConfig config)
@@ -75,165 +181,256 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
     setConfig(config);
   }
 
+  /**
+   * Sets the config of the editor. If the editor is already showing, writer rules, keystrokes, protected source,
+   * contents CSS, body class and read-only are changed on the running editor, other changes create a new editor.
+   * The client reports which it did, see {@link #addConfigUpdateListener(ConfigUpdateListener)}. Changes made to the
+   * config afterwards only apply once it is set again.
+   *
+   * @param config the config
+   */
   public void setConfig(CKEditorConfig config)
   {
+    CKEditorConfig previous = this.config;
     this.config = config;
     if (config.isReadOnly())
       setReadOnly(true);
+    else if (previous != null && previous.isReadOnly())
+      setReadOnly(false); // the read-only mode came from the previous config
+    if (isAttached())
+    {
+      registerDependencies();
+      registerConfig();
+    }
+    markAsDirty();
   }
 
-  public String getVersion()
+  /**
+   * Uses the frozen config of a preset, shared with all other fields using it
+   *
+   * @param preset the preset
+   */
+  public void setPreset(CKEditorPreset preset)
   {
-    return version;
+    setConfig(preset.getConfig());
   }
 
-  @Override
-  public String getValue()
+  /**
+   * Registers the editor files needed by the current config (core, language, plugins and skin) in the session,
+   * all of them if there is no config. Not needed when the {@link CKEditorResourceHandler} serves the editor files.
+   */
+  protected void registerDependencies()
   {
-    return value;
+    if (!CKEditorResourceHandler.isEnabled(VaadinService.getCurrent()))
+      CKEditorDependencyManager.registerDependencies(config, getLocale());
   }
 
-  @Override
-  public void paintContent(PaintTarget target) throws PaintException
+  private static int getIntParameter(VaadinService service, String name)
   {
-    //super.paintContent(target);
-
-    if (textIsDirty)
+    if (service == null)
+      return 0;
+    try
     {
-      Object currValueObject = getValue();
-      String currValue = currValueObject == null ? "" : currValueObject.toString();
-      target.addVariable(this, VCKEditorTextField.VAR_TEXT, currValue);
-      textIsDirty = false;
+      return Integer.parseInt(service.getDeploymentConfiguration().getApplicationOrSystemProperty(name, "0", false).trim());
     }
-
-    target.addAttribute(VCKEditorTextField.ATTR_IMMEDIATE, isImmediate());
-    target.addAttribute(VCKEditorTextField.ATTR_READONLY, isReadOnly());
-    target.addAttribute(VCKEditorTextField.ATTR_VIEW_WITHOUT_EDITOR, isViewWithoutEditor());
-
-    if (config != null)
+    catch (NumberFormatException e)
     {
-      target.addAttribute(VCKEditorTextField.ATTR_INPAGECONFIG, config.getInPageConfig());
-
-      if (config.hasWriterRules())
-      {
-        int i = 0;
-        Set<String> tagNameSet = config.getWriterRulesTagNames();
-        for (String tagName : tagNameSet)
-        {
-          target.addAttribute(VCKEditorTextField.ATTR_WRITERRULES_TAGNAME + i, tagName);
-          target.addAttribute(VCKEditorTextField.ATTR_WRITERRULES_JSRULE + i, config.getWriterRuleByTagName(tagName));
-          ++i;
-        }
-      }
-
-      if (config.hasWriterIndentationChars())
-      {
-        target.addAttribute(VCKEditorTextField.ATTR_WRITER_INDENTATIONCHARS, config.getWriterIndentationChars());
-      }
-
-      if (config.hasKeystrokeMappings())
-      {
-        int i = 0;
-        Set<Integer> keystrokeSet = config.getKeystrokes();
-        for (Integer keystroke : keystrokeSet)
-        {
-          target.addAttribute(VCKEditorTextField.ATTR_KEYSTROKES_KEYSTROKE + i, keystroke);
-          target.addAttribute(VCKEditorTextField.ATTR_KEYSTROKES_COMMAND + i, config.getKeystrokeCommandByKeystroke(keystroke));
-          ++i;
-        }
-      }
-
-      if (config.hasProtectedSource())
-      {
-        int i = 0;
-        for (String protectedSourceRegex : config.getProtectedSource())
-        {
-          target.addAttribute(VCKEditorTextField.ATTR_PROTECTED_SOURCE + i, protectedSourceRegex);
-          ++i;
-        }
-      }
+      return 0;
     }
+  }
+
+  /**
+   * @return the minimum length of values that are sent compressed, 0 if compression is off
+   * @see #PARAMETER_COMPRESSION_THRESHOLD
+   */
+  public int getCompressionThreshold()
+  {
+    return getIntParameter(VaadinService.getCurrent(), PARAMETER_COMPRESSION_THRESHOLD);
+  }
 
-    target.addAttribute(VCKEditorTextField.ATTR_PROTECTED_BODY, protectedBody);
+  /**
+   * @return the maximum length of a text the client may send
+   * @see #PARAMETER_MAX_TEXT_LENGTH
+   */
+  public int getMaxTextLength()
+  {
+    int maxLength = getIntParameter(VaadinService.getCurrent(), PARAMETER_MAX_TEXT_LENGTH);
+    return maxLength > 0 ? maxLength : DEFAULT_MAX_TEXT_LENGTH;
+  }
 
-    if (insertHtml != null)
-    {
-      target.addAttribute(VCKEditorTextField.ATTR_INSERT_HTML, insertHtml);
-      insertHtml = null;
-    }
-    if (insertText != null)
-    {
-      target.addAttribute(VCKEditorTextField.ATTR_INSERT_TEXT, insertText);
-      insertText = null;
-    }
+  private void logTooLarge(int length)
+  {
+    Logger.getLogger(AbstractCKEditorTextField.class.getName()).warning(
+        "Rejected a text of " + length + " characters from the client, the maximum is " + getMaxTextLength()
+        + ", see " + PARAMETER_MAX_TEXT_LENGTH);
+  }
 
-    if (focusRequested)
-    {
-      target.addAttribute(VCKEditorTextField.ATTR_FOCUS, true);
-      focusRequested = false;
-    }
+  public String getVersion()
+  {
+    return version;
+  }
 
+  /**
+   * @return how the client applied the last config set while the editor was showing, null if it never had to
+   */
+  public ConfigUpdate getLastConfigUpdate()
+  {
+    return lastConfigUpdate;
   }
 
   @Override
-  protected void fireEvent(EventObject event)
+  public String getValue()
   {
-    super.fireEvent(event);
+    return value;
+  }
 
-    if(event instanceof ValueChangeEvent)
-      textIsDirty = true;
+  @Override
+  protected CKEditorState getState()
+  {
+    return (CKEditorState) super.getState();
   }
 
   @Override
-  public void changeVariables(Object source, Map<String, Object> variables)
+  protected CKEditorState getState(boolean markAsDirty)
+  {
+    return (CKEditorState) super.getState(markAsDirty);
+  }
+
+  /**
+   * Sets the text of the client, either sent in full or as patch
+   *
+   * @param version the version of the text the client changed
+   */
+  private void receiveText(int version, String text, String patch)
   {
-    //super.changeVariables(source, variables);
+    if (isReadOnly())
+      return;
+
+    Object currValueObject = getValue();
+    final String oldValue = currValueObject == null ? "" : currValueObject.toString();
+
+    String newValue;
+    if (text != null)
+      newValue = CKEditorCompression.decode(text);
+    else
+      newValue = TextPatch.apply(oldValue, CKEditorCompression.decode(patch));
 
-    // Sets the CKEditor version
-    if (variables.containsKey(VCKEditorTextField.VAR_VERSION))
+    if (newValue == null)
     {
-      version = (String) variables.get(VCKEditorTextField.VAR_VERSION);
+      // The patch was made for another text, the client has to send its text in full
+      textResendRequested = true;
+      markAsDirty();
+      return;
     }
-
-    // Sets the text
-    if (variables.containsKey(VCKEditorTextField.VAR_TEXT) && !isReadOnly())
+    if (newValue.length() > getMaxTextLength())
     {
-      // Only do the setting if the string representation of the value has been updated
-      Object newVarTextObject = variables.get(VCKEditorTextField.VAR_TEXT);
-      String newValue = newVarTextObject == null ? "" : newVarTextObject.toString();
+      logTooLarge(newValue.length());
+      return;
+    }
 
-      Object currValueObject = getValue();
-      final String oldValue = currValueObject == null ? "" : currValueObject.toString();
-      if (!newValue.equals(oldValue))
+    // Only do the setting if the string representation of the value has been updated
+    if (!newValue.equals(oldValue))
+    {
+      settingClientText = true;
+      try
       {
         setValue(newValue, true);
       }
+      finally
+      {
+        settingClientText = false;
+      }
     }
 
-    if (variables.containsKey(FocusEvent.EVENT_ID))
+    if (clientTextVersion >= 0 && version == clientTextVersion)
+      clientText = newValue;
+    else
     {
-      fireEvent(new FocusEvent(this));
+      // The client changed a text we have not sent it yet. It will show that text once it arrives,
+      // so the value is sent again with a new version.
+      ++textVersion;
+      markAsDirty();
     }
-    if (variables.containsKey(BlurEvent.EVENT_ID))
+  }
+
+  /**
+   * Adds a chunk of a text to the running transfer and acknowledges it to the client. Once the transfer is complete,
+   * the assembled text is set.
+   */
+  private void receiveChunk(int version, String encodedChunk)
+  {
+    TextChunk chunk = TextChunk.decode(encodedChunk);
+    if (chunk == null || isReadOnly())
+      return;
+
+    boolean tooLarge = false;
+    if (chunk.index == 0 && (textTransfer == null || !textTransfer.belongsTo(chunk))
+        && (TextChunk.TEXT.equals(chunk.name) || TextChunk.PATCH.equals(chunk.name)))
     {
-      fireEvent(new BlurEvent(this));
+      int maxLength = getMaxTextLength();
+      tooLarge = CKEditorTextTransfer.isTooLarge(chunk, maxLength);
+      textTransfer = CKEditorTextTransfer.start(chunk, maxLength);
     }
 
-    if (variables.containsKey(SelectionChangeEvent.EVENT_ID))
+    int next;
+    if (tooLarge)
     {
-      Object selectedHtmlObject = variables.get(SelectionChangeEvent.EVENT_ID);
-      if (selectedHtmlObject != null)
-      {
-        String selectedHtml = selectedHtmlObject.toString();
-        fireEvent(new SelectionChangeEvent(this, selectedHtml));
-      }
+      logTooLarge(chunk.getTotalLength());
+      next = CKEditorTextTransfer.TOO_LARGE;
     }
+    else if (textTransfer != null && textTransfer.belongsTo(chunk))
+      next = textTransfer.receive(chunk);
+    else
+      next = chunk.index == 0 ? CKEditorTextTransfer.REJECTED : 0; // unknown transfer, the client has to start over
 
-    // See if the vaadinsave button was pressed
-    if (variables.containsKey(VCKEditorTextField.VAR_VAADIN_SAVE_BUTTON_PRESSED) && !isReadOnly())
+    if (next >= 0 && textTransfer != null && textTransfer.isComplete())
     {
-      notifyVaadinSaveListeners();
+      String text = textTransfer.getText();
+      String name = textTransfer.getName();
+      textTransfer = null;
+      if (text != null)
+      {
+        getRpcProxy(CKEditorClientRpc.class).chunkAck(chunk.transfer, next);
+        if (TextChunk.TEXT.equals(name))
+          receiveText(version, text, null);
+        else
+          receiveText(version, null, text);
+        return;
+      }
+      next = CKEditorTextTransfer.REJECTED; // checksum mismatch
     }
+    if (next < 0)
+      textTransfer = null;
+    getRpcProxy(CKEditorClientRpc.class).chunkAck(chunk.transfer, next);
+  }
+
+  /**
+   * Sends the value to the client. Small changes of a large text are sent as patch against the text the client has.
+   */
+  private void sendText()
+  {
+    Object currValueObject = getValue();
+    String currValue = currValueObject == null ? "" : currValueObject.toString();
+    int compressionThreshold = getState(false).compressionThreshold;
+    String patch = clientText != null ? TextPatch.create(clientText, currValue) : null;
+    if (patch != null && patch.length() < currValue.length())
+      getRpcProxy(CKEditorClientRpc.class).setText(textVersion, null, CKEditorCompression.encode(patch, compressionThreshold));
+    else
+      getRpcProxy(CKEditorClientRpc.class).setText(textVersion, CKEditorCompression.encode(currValue, compressionThreshold), null);
+    clientText = currValue;
+    clientTextVersion = textVersion;
+  }
+
+  /**
+   * Registers the config in the registry of the UI, the state only references it by its fingerprint. Only called
+   * while handling a request, when the field is attached or gets a config. During the response the registry may
+   * already be written, it would not send the config anymore.
+   */
+  private void registerConfig()
+  {
+    CKEditorConfig editorConfig = config != null ? config : DEFAULT_CONFIG;
+    getState().configId = CKEditorConfigRegistry.get(getUI()).register(this, editorConfig,
+        getState(false).compressionThreshold);
   }
 
   @Override
@@ -271,18 +468,40 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
     removeListener(SelectionChangeEvent.EVENT_ID, SelectionChangeEvent.class, listener);
   }
 
+  /**
+   * The listener is notified when a config set with {@link #setConfig(CKEditorConfig)} was applied to the editor
+   * that was showing
+   */
+  public Registration addConfigUpdateListener(ConfigUpdateListener listener)
+  {
+    return addListener(ConfigUpdateEvent.class, listener, ConfigUpdateListener.configUpdateMethod);
+  }
+
   @Override
   public void attach()
   {
     super.attach();
-    textIsDirty = true;
+    registerDependencies();
+    clientText = null;
+    clientTextVersion = -1;
+
+    VaadinService service = VaadinService.getCurrent();
+    CKEditorState state = getState();
+    state.poolSize = getIntParameter(service, PARAMETER_POOL_SIZE);
+    state.compressionThreshold = getIntParameter(service, PARAMETER_COMPRESSION_THRESHOLD);
+    state.chunkSize = getIntParameter(service, PARAMETER_CHUNK_SIZE);
+    state.basePath = CKEditorResourceHandler.isEnabled(service) ? CKEditorResourceHandler.getEditorBasePath() : null;
+    registerConfig();
   }
 
   @Override
   public void detach()
   {
+    CKEditorConfigRegistry.get(getUI()).release(this);
     super.detach();
-    textIsDirty = true;
+    textTransfer = null;
+    clientText = null;
+    clientTextVersion = -1;
   }
 
   @Override
@@ -290,9 +509,21 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
   {
     if (initial)
     {
-      textIsDirty = true;
+      clientText = null;
+      clientTextVersion = -1;
     }
     super.beforeClientResponse(initial);
+    getState().bundleUrl = CKEditorResourceHandler.isEnabled(VaadinService.getCurrent())
+                           ? CKEditorScriptBundler.getBundleUrl(config, getLocale()) : null;
+
+    if (textResendRequested)
+    {
+      // Our text is older than the one of the client, it is not sent until the client sent its text
+      getRpcProxy(CKEditorClientRpc.class).resendText();
+      textResendRequested = false;
+    }
+    else if (clientTextVersion != textVersion)
+      sendText();
   }
 
   @Override
@@ -303,42 +534,65 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
 
   public boolean isViewWithoutEditor()
   {
-    return viewWithoutEditor;
+    return getState(false).viewWithoutEditor;
   }
 
   public void setViewWithoutEditor(boolean v)
   {
-    viewWithoutEditor = v;
-    markAsDirty();
+    getState().viewWithoutEditor = v;
+  }
+
+  public boolean isLazyLoading()
+  {
+    return getState(false).lazyLoading;
+  }
+
+  /**
+   * In lazy mode the client first shows the contents as plain HTML and creates the editor only when the field
+   * scrolls into view, gets focus or is clicked. Useful for forms with many editors.
+   *
+   * @param v true to enable lazy mode
+   */
+  public void setLazyLoading(boolean v)
+  {
+    getState().lazyLoading = v;
+  }
+
+  public boolean isSharedEditor()
+  {
+    return getState(false).sharedEditor;
+  }
+
+  /**
+   * In shared editor mode the field shows its contents as plain HTML, and all such fields with the same config share
+   * one editor in the browser. The editor moves to a field when it gets focus or is clicked, the field it leaves sends
+   * its text to the server. Intended for grids and lists with many rich text values, of which only one is edited at a time.
+   *
+   * @param v true to enable shared editor mode
+   */
+  public void setSharedEditor(boolean v)
+  {
+    getState().sharedEditor = v;
   }
 
   public void insertHtml(String html)
   {
-    if (insertHtml == null)
-      insertHtml = html;
-    else
-      insertHtml += html;
-    markAsDirty();
+    getRpcProxy(CKEditorClientRpc.class).insertHtml(CKEditorCompression.encode(html, getState(false).compressionThreshold));
   }
 
   public void insertText(String text)
   {
-    if (insertText == null)
-      insertText = text;
-    else
-      insertText += text;
-    markAsDirty();
+    getRpcProxy(CKEditorClientRpc.class).insertText(text);
   }
 
   public boolean isProtectedBody()
   {
-    return protectedBody;
+    return getState(false).protectedBody;
   }
 
   public void setProtectedBody(boolean protectedBody)
   {
-    this.protectedBody = protectedBody;
-    markAsDirty();
+    getState().protectedBody = protectedBody;
   }
 
   public synchronized void addVaadinSaveListener(VaadinSaveListener listener)
@@ -357,29 +611,52 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
   /**
    * Is CKEditor in immediate mode
    *
-   * @return
+   * @return true if the sync policy is {@link SyncPolicy#IMMEDIATE}
    */
   public boolean isImmediate()
   {
-    return this.immediate;
+    return SyncPolicy.IMMEDIATE.equals(syncPolicy);
   }
 
   /**
    * Set CKEditor immediate to get change events faster
    *
-   * @param immediate
+   * @param immediate true for {@link SyncPolicy#IMMEDIATE}, false for {@link SyncPolicy#WITH_NEXT_REQUEST}
    */
   public void setImmediate(boolean immediate)
   {
-    this.immediate = immediate;
-    markAsDirty();
+    setSyncPolicy(immediate ? SyncPolicy.IMMEDIATE : SyncPolicy.WITH_NEXT_REQUEST);
+  }
+
+  public SyncPolicy getSyncPolicy()
+  {
+    return syncPolicy;
+  }
+
+  /**
+   * Sets when the client sends the text while the user is typing, e.g. <code>SyncPolicy.debounce(500).withMaxWait(5000)</code>
+   * sends it after a pause of half a second, but at least every five seconds.
+   *
+   * @param syncPolicy the policy, not null
+   */
+  public void setSyncPolicy(SyncPolicy syncPolicy)
+  {
+    this.syncPolicy = Objects.requireNonNull(syncPolicy);
+    CKEditorState state = getState();
+    state.syncDebounce = syncPolicy.getDebounce();
+    state.syncMaxWait = syncPolicy.getMaxWait();
+    state.syncIdleFlush = syncPolicy.isIdleFlush();
   }
 
   @Override
   protected void doSetValue(String s)
   {
     value = s == null ? "" : s;
-    textIsDirty = true;
+    if (!settingClientText)
+    {
+      ++textVersion;
+      markAsDirty();
+    }
   }
 
   // Part of Focusable
@@ -387,8 +664,7 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
   public void focus()
   {
     super.focus();
-    focusRequested = true;
-    markAsDirty();
+    getRpcProxy(CKEditorClientRpc.class).focus();
   }
 
   synchronized void notifyVaadinSaveListeners()
@@ -413,6 +689,52 @@ public abstract class AbstractCKEditorTextField extends AbstractField<String>
     void vaadinSave(AbstractCKEditorTextField editor);
   }
 
+  /**
+   * How a changed config was applied to an editor that was showing
+   */
+  public enum ConfigUpdate
+  {
+    /**
+     * Only writer rules, keystrokes, protected source, contents CSS, body class or read-only changed, they were
+     * applied to the running editor
+     */
+    LIVE,
+    /**
+     * Other options changed, the editor was created anew
+     */
+    REBUILD
+  }
+
+  public interface ConfigUpdateListener extends Serializable
+  {
+    public static final Method configUpdateMethod = ReflectTools.findMethod(
+        ConfigUpdateListener.class, "configUpdate", ConfigUpdateEvent.class);
+
+    public void configUpdate(ConfigUpdateEvent event);
+  }
+
+  @SuppressWarnings("serial")
+  public static class ConfigUpdateEvent extends Component.Event
+  {
+    private final ConfigUpdate update;
+
+    public ConfigUpdateEvent(Component source, ConfigUpdate update)
+    {
+      super(source);
+      this.update = update;
+    }
+
+    public ConfigUpdate getUpdate()
+    {
+      return update;
+    }
+
+    public boolean isRebuilt()
+    {
+      return update == ConfigUpdate.REBUILD;
+    }
+  }
+
   public interface SelectionChangeListener extends ConnectorEventListener
   {
     public static final Method selectionChangeMethod = ReflectTools.findMethod(
@@ -0,0 +1,132 @@
+package org.vaadin.alump.ckeditor;
+
+import org.vaadin.alump.ckeditor.client.shared.TextCompression;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Komprimiert große Werte (Text, einzufügendes HTML, Konfiguration) für die Übertragung zum Client und entpackt die
+ * Werte des Clients, siehe {@link TextCompression}. Zählt dabei für alle Editoren der Anwendung, wie viele Werte
+ * über der Schwelle lagen und wie stark sie verkleinert wurden.
+ * Eingeschaltet wird die Komprimierung über {@link AbstractCKEditorTextField#PARAMETER_COMPRESSION_THRESHOLD}.
+ */
+public class CKEditorCompression
+{
+  private static final AtomicLong SENT_VALUES = new AtomicLong();
+  private static final AtomicLong SENT_CHARS = new AtomicLong();
+  private static final AtomicLong SENT_COMPRESSED_CHARS = new AtomicLong();
+  private static final AtomicLong SENT_UNCOMPRESSED_VALUES = new AtomicLong();
+  private static final AtomicLong RECEIVED_VALUES = new AtomicLong();
+  private static final AtomicLong RECEIVED_CHARS = new AtomicLong();
+  private static final AtomicLong RECEIVED_COMPRESSED_CHARS = new AtomicLong();
+
+  /**
+   * Komprimiert einen Wert für den Client, wenn er die Schwelle erreicht und sich die Komprimierung lohnt
+   *
+   * @param pValue     der Wert
+   * @param pThreshold Mindestlänge, ab der komprimiert wird, 0 für nie
+   * @return der komprimierte oder der unveränderte Wert
+   */
+  static String encode(String pValue, int pThreshold)
+  {
+    // Auch ohne Schwelle über TextCompression, ein Text der mit der Markierung beginnt wird immer komprimiert
+    String encoded = TextCompression.encode(pValue, pThreshold);
+    if (TextCompression.isCompressed(encoded))
+    {
+      SENT_VALUES.incrementAndGet();
+      SENT_CHARS.addAndGet(pValue.length());
+      SENT_COMPRESSED_CHARS.addAndGet(encoded.length());
+    }
+    else if (pValue != null && pThreshold > 0 && pValue.length() >= pThreshold)
+      SENT_UNCOMPRESSED_VALUES.incrementAndGet();
+    return encoded;
+  }
+
+  /**
+   * Entpackt einen Wert des Clients
+   *
+   * @param pValue der Wert, komprimiert oder nicht
+   * @return der Text, oder <tt>null</tt> wenn die komprimierten Daten ungültig sind
+   */
+  static String decode(String pValue)
+  {
+    if (!TextCompression.isCompressed(pValue))
+      return pValue;
+
+    String decoded = TextCompression.decode(pValue);
+    if (decoded != null)
+    {
+      RECEIVED_VALUES.incrementAndGet();
+      RECEIVED_CHARS.addAndGet(decoded.length());
+      RECEIVED_COMPRESSED_CHARS.addAndGet(pValue.length());
+    }
+    return decoded;
+  }
+
+  /**
+   * @return Anzahl der komprimiert zum Client gesendeten Werte
+   */
+  public static long getSentValues()
+  {
+    return SENT_VALUES.get();
+  }
+
+  /**
+   * @return Anzahl der Werte über der Schwelle, die unkomprimiert gesendet wurden, weil es sich nicht lohnte
+   */
+  public static long getSentUncompressedValues()
+  {
+    return SENT_UNCOMPRESSED_VALUES.get();
+  }
+
+  /**
+   * @return Verhältnis der komprimierten zur ursprünglichen Länge der gesendeten Werte, 1 wenn noch nichts komprimiert wurde
+   */
+  public static double getSentRatio()
+  {
+    return _ratio(SENT_COMPRESSED_CHARS.get(), SENT_CHARS.get());
+  }
+
+  /**
+   * @return Anzahl der komprimiert vom Client empfangenen Werte
+   */
+  public static long getReceivedValues()
+  {
+    return RECEIVED_VALUES.get();
+  }
+
+  /**
+   * @return Verhältnis der komprimierten zur ursprünglichen Länge der empfangenen Werte, 1 wenn noch nichts empfangen wurde
+   */
+  public static double getReceivedRatio()
+  {
+    return _ratio(RECEIVED_COMPRESSED_CHARS.get(), RECEIVED_CHARS.get());
+  }
+
+  /**
+   * @return Anzahl der Zeichen, die durch die Komprimierung in beide Richtungen eingespart wurden
+   */
+  public static long getSavedChars()
+  {
+    return SENT_CHARS.get() - SENT_COMPRESSED_CHARS.get() + RECEIVED_CHARS.get() - RECEIVED_COMPRESSED_CHARS.get();
+  }
+
+  /**
+   * Setzt alle Zähler zurück
+   */
+  public static void resetMetrics()
+  {
+    SENT_VALUES.set(0);
+    SENT_CHARS.set(0);
+    SENT_COMPRESSED_CHARS.set(0);
+    SENT_UNCOMPRESSED_VALUES.set(0);
+    RECEIVED_VALUES.set(0);
+    RECEIVED_CHARS.set(0);
+    RECEIVED_COMPRESSED_CHARS.set(0);
+  }
+
+  private static double _ratio(long pCompressed, long pOriginal)
+  {
+    return pOriginal == 0 ? 1 : (double) pCompressed / pOriginal;
+  }
+}
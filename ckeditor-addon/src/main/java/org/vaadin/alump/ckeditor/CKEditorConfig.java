@@ -20,18 +20,25 @@
 package org.vaadin.alump.ckeditor;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Configuration utility for using the CKEditorTextField.  You can use this "config javascript builder" object for our
  * tested/common options, or just set the options using a JavaScript/JSON string as you prefer.
+ * <p>
+ * The generated in-page config is built once and kept until a setter changes the config. A config that is shared by
+ * many fields, or by several sessions, should be {@link #freeze() frozen} once it is set up.
  */
-public class CKEditorConfig implements Serializable {
+public class CKEditorConfig implements Serializable, Cloneable {
 
 	// If this is set, we'll just use it and ignore everything else.
 	protected String inPageConfig;
@@ -106,12 +113,122 @@ public class CKEditorConfig implements Serializable {
 	
 	// Sent separately since cannot make it work with inPageConfig
 	protected LinkedList<String> protectedSource = null;
+	
+	// Not a CKEditor option, selects CKEDITOR.inline instead of CKEDITOR.appendTo
+	protected boolean inlineMode = false;
+
+	// Built on demand and dropped by changed()
+	private transient volatile String generatedInPageConfig;
+	private transient volatile String fingerprint;
+	private boolean frozen = false;
+	// Collections shared with copies of this config, each side copies them before its first change
+	private Set<Object> sharedParts = null;
 
 	
 	public CKEditorConfig() {
 	}
 	
+	/**
+	 * Must be called by every method that changes the config before it does so, including those of subclasses.
+	 * @throws IllegalStateException if the config is frozen
+	 */
+	protected void changed() {
+		if ( frozen )
+			throw new IllegalStateException("The CKEditorConfig is frozen");
+		generatedInPageConfig = null;
+		fingerprint = null;
+	}
+	
+	/**
+	 * Makes the config immutable, all setters throw an IllegalStateException afterwards. The in-page config and the
+	 * fingerprint are built right away, so fields and sessions sharing the config never build them again.
+	 * @return this config
+	 */
+	public synchronized CKEditorConfig freeze() {
+		if ( ! frozen ) {
+			getFingerprint();
+			frozen = true;
+		}
+		return this;
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Creates an unfrozen copy of this config. The lists and maps of options are shared with this config until one of
+	 * the two changes them, so copying a large config is cheap.
+	 * @return the copy
+	 */
+	public synchronized CKEditorConfig copy() {
+		Set<Object> parts = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		for( Object part : new Object[] { extraConfigLines, writerRules, keystrokeMappings, extraPlugins, removePlugins,
+				customToolbarLines, templates_files, protectedSource } ) {
+			if ( part != null )
+				parts.add(part);
+		}
+		CKEditorConfig copy;
+		try {
+			copy = (CKEditorConfig)super.clone();
+		} catch( CloneNotSupportedException e ) {
+			throw new IllegalStateException(e);
+		}
+		copy.frozen = false;
+		copy.sharedParts = parts;
+		if ( ! frozen ) {
+			// A frozen config never changes its parts
+			Set<Object> own = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+			own.addAll(parts);
+			sharedParts = own;
+		}
+		return copy;
+	}
+	
+	private LinkedList<String> own(LinkedList<String> list) {
+		if ( list != null && sharedParts != null && sharedParts.remove(list) )
+			return new LinkedList<String>(list);
+		return list;
+	}
+	
+	private <K> HashMap<K,String> own(HashMap<K,String> map) {
+		if ( map != null && sharedParts != null && sharedParts.remove(map) )
+			return new HashMap<K,String>(map);
+		return map;
+	}
+	
+	/**
+	 * @return the in-page config, built from the options set unless given with {@link #setInPageConfig(String)}.
+	 * The result is kept until the config changes.
+	 */
 	public String getInPageConfig() {
+		String config = generatedInPageConfig;
+		if ( config == null ) {
+			config = buildInPageConfig();
+			generatedInPageConfig = config;
+		}
+		return config;
+	}
+	
+	/**
+	 * @return a hash of everything sent to the client: the in-page config, the inline mode, writer rules, keystrokes
+	 * and protected source. Configs with the same content have the same fingerprint. Kept until the config changes.
+	 */
+	public String getFingerprint() {
+		String hash = fingerprint;
+		if ( hash == null ) {
+			String content = getInPageConfig() + '\u0000' + inlineMode
+					+ '\u0000' + (writerRules == null ? null : new TreeMap<String,String>(writerRules))
+					+ '\u0000' + writerIndentationChars
+					+ '\u0000' + (keystrokeMappings == null ? null : new TreeMap<Integer,String>(keystrokeMappings))
+					+ '\u0000' + protectedSource;
+			hash = CKEditorResourceIndex.hash(content.getBytes(StandardCharsets.UTF_8));
+			fingerprint = hash;
+		}
+		return hash;
+	}
+	
+	protected String buildInPageConfig() {
 		if ( inPageConfig != null ) {
 			return inPageConfig;
 		}
@@ -376,9 +493,34 @@ public class CKEditorConfig implements Serializable {
 	 * @param js the String JSON 'config' for the new editor instance.
 	 */
 	public void setInPageConfig(String js) {
+		changed();
 		inPageConfig = js;
 	}
 	
+	/**
+	 * @return true if the in page config was given as a JavaScript/JSON string, so the options set through this
+	 * builder (plugins, language, skin...) are not known.
+	 */
+	public boolean hasCustomInPageConfig() {
+		return inPageConfig != null;
+	}
+
+	/**
+	 * Creates an inline editor (CKEDITOR.inline) instead of the classic iframe based one. The contents are edited 
+	 * directly in the page, which saves a document, a stylesheet and a layout context per editor, and the toolbar 
+	 * floats above the field while it has focus. The page's styles apply to the contents in inline mode.
+	 * Inline editors have no source mode and are not kept in the client's editor pool.
+	 * @param inlineMode true for an inline editor
+	 */
+	public void setInlineMode(boolean inlineMode) {
+		changed();
+		this.inlineMode = inlineMode;
+	}
+
+	public boolean isInlineMode() {
+		return inlineMode;
+	}
+	
 	/**
 	 * Allows you to add any CKEDITOR.config option line to the in page configuration. This is considered a hack, but may be
 	 * necessary if you are setting an option not supported by the API of this class. We recommend that you request the API
@@ -388,6 +530,8 @@ public class CKEditorConfig implements Serializable {
 	 * @param extraConfigValue the String value
 	 */
 	public void addExtraConfig(String extraConfigName, String extraConfigValue) {
+		changed();
+		extraConfigLines = own(extraConfigLines);
 		if ( extraConfigLines == null )
 			extraConfigLines = new LinkedList<String>();
 		extraConfigLines.add(extraConfigName + " : " + extraConfigValue);
@@ -397,12 +541,14 @@ public class CKEditorConfig implements Serializable {
 		return writerRules != null && ! writerRules.isEmpty();
 	}
 	public Set<String> getWriterRulesTagNames() {
-		return writerRules == null ? new HashSet<String>() : writerRules.keySet();
+		return writerRules == null ? new HashSet<String>() : Collections.unmodifiableSet(writerRules.keySet());
 	}
 	public String getWriterRuleByTagName(String tagName) {
 		return writerRules == null ? null : writerRules.get(tagName);
 	}
 	public synchronized void addWriterRules(String tagName, String jsRule) {
+		changed();
+		writerRules = own(writerRules);
 		if ( writerRules == null ) {
 			writerRules = new HashMap<String,String>();
 		}
@@ -413,7 +559,7 @@ public class CKEditorConfig implements Serializable {
 		return keystrokeMappings != null && ! keystrokeMappings.isEmpty();
 	}
 	public Set<Integer> getKeystrokes() {
-		return keystrokeMappings == null ? new HashSet<Integer>() : keystrokeMappings.keySet();
+		return keystrokeMappings == null ? new HashSet<Integer>() : Collections.unmodifiableSet(keystrokeMappings.keySet());
 	}
 	public String getKeystrokeCommandByKeystroke(Integer keystroke) {
 		return keystrokeMappings == null ? null : keystrokeMappings.get(keystroke);
@@ -422,6 +568,8 @@ public class CKEditorConfig implements Serializable {
 	public static int CKEDITOR_KEYSTROKE_CTRL = 0x110000;
 	public static int CKEDITOR_KEYSTROKE_SHIFT = 0x220000;
 	public synchronized void addKeystrokeMapping(int keystroke, String command) {
+		changed();
+		keystrokeMappings = own(keystrokeMappings);
 		if ( keystrokeMappings == null ) {
 			keystrokeMappings = new HashMap<Integer,String>();
 		}
@@ -456,10 +604,14 @@ public class CKEditorConfig implements Serializable {
 		return writerIndentationChars != null;
 	}
 	public void setWriterIndentationChars(String v) {
+		changed();
 		writerIndentationChars = v;
 	}
 
 	public synchronized void addToExtraPlugins(String pluginName) {
+		changed();
+		extraPlugins = own(extraPlugins);
+		removePlugins = own(removePlugins);
 		if ( extraPlugins == null ) {
 			extraPlugins = new LinkedList<String>();
 		}
@@ -546,6 +698,9 @@ public class CKEditorConfig implements Serializable {
 	}
 	
 	public synchronized void addToRemovePlugins(String pluginName) {
+		changed();
+		removePlugins = own(removePlugins);
+		extraPlugins = own(extraPlugins);
 		if ( removePlugins == null ) {
 			removePlugins = new LinkedList<String>();
 		}
@@ -558,6 +713,20 @@ public class CKEditorConfig implements Serializable {
 		}
 	}
 	
+	/**
+	 * @return the extra plugins, read only
+	 */
+	public List<String> getExtraPlugins() {
+		return extraPlugins == null ? new LinkedList<String>() : Collections.unmodifiableList(extraPlugins);
+	}
+	
+	/**
+	 * @return the removed plugins, read only
+	 */
+	public List<String> getRemovePlugins() {
+		return removePlugins == null ? new LinkedList<String>() : Collections.unmodifiableList(removePlugins);
+	}
+	
 	public void disableElementsPath() {
 		addToRemovePlugins("elementspath"); 
 	}
@@ -571,6 +740,7 @@ public class CKEditorConfig implements Serializable {
 	}
 	
 	public void setDisableNativeSpellChecker(boolean v) {
+		changed();
 		disableNativeSpellChecker = v;
 	}
 
@@ -586,6 +756,8 @@ public class CKEditorConfig implements Serializable {
 	 * @param toolbarLineJS
 	 */
 	public synchronized void addCustomToolbarLine(String toolbarLineJS) {
+		changed();
+		customToolbarLines = own(customToolbarLines);
 		if ( customToolbarLines == null ) {
 			customToolbarLines = new LinkedList<String>();
 		}
@@ -595,6 +767,7 @@ public class CKEditorConfig implements Serializable {
 	}
 	
 	public void setToolbarCanCollapse(boolean v) {
+		changed();
 		toolbarCanCollapse = v;
 	}
 
@@ -609,24 +782,36 @@ public class CKEditorConfig implements Serializable {
      */
     public void setSkin(String newSkin) 
     {
+        changed();
         skin = newSkin;
     }
 
+    /**
+     * @return the skin set, or null to use the default skin of the CKEditor build
+     */
+    public String getSkin()
+    {
+        return skin;
+    }
+
     /**
      * @param newToolbarStartupExpanded the toolbarStartupExpanded status
      */
     public void setToolbarStartupExpanded(Boolean newToolbarStartupExpanded) 
     {
+        changed();
         toolbarStartupExpanded = newToolbarStartupExpanded;
     }
 
 	public void setResizeEnabled(boolean v) {
+		changed();
 		resizeEnabled = v;
 	}
 
 	public enum RESIZE_DIR { BOTH, VERTICAL, HORIZONTAL }
 	
 	public void setResizeDir(RESIZE_DIR dir) {
+		changed();
 		if ( dir.equals(RESIZE_DIR.BOTH) ) {
 			resizeDir = "both";
 		} else if ( dir.equals(RESIZE_DIR.VERTICAL) ) {
@@ -639,57 +824,70 @@ public class CKEditorConfig implements Serializable {
 	}
 
 	public void setResizeMinWidth(int pixels) {
+		changed();
 		resizeMinWidth = pixels;
 	}
 
 	public void setResizeMaxWidth(int pixels) {
+		changed();
 		resizeMaxWidth = pixels;
 	}
 
 	public void setResizeMinHeight(int pixels) {
+		changed();
 		resizeMinHeight = pixels;
 	}
 
 	public void setResizeMaxHeight(int pixels) {
+		changed();
 		resizeMaxHeight = pixels;
 	}
 
 	public void setWidth(String cssSize) {
+		changed();
 		width = cssSize;
 	}
 
 	public void setHeight(String cssSize) {
+		changed();
 		height = cssSize;
 	}
 	
 	public void setBaseFloatZIndex(int zIndex) {
+		changed();
 		baseFloatZIndex = zIndex;
 	}
 	
 	public void setTabSpaces(int numSpaces) {
+		changed();
 		tabSpaces = numSpaces;
 	}
 	
 	public void setPasteFromWordRemoveFontStyles(boolean v)
 	{
+		changed();
 		pasteFromWordRemoveFontStyles = v;
 	}
 
 	public void setPasteFromWordPromptCleanup(boolean v)
 	{
+		changed();
 		pasteFromWordPromptCleanup = v;
 	}
 	
 	public void setStartupModeSource()
 	{
+		changed();
 		startupMode = "source";
 	}
 	public void setStartupModeWysiwyg()
 	{
+		changed();
 		startupMode = "wysiwyg";
 	}
 	
 	public void setStartupFocus(boolean v) {
+		changed();
 		startupFocus = v;
 	}
 
@@ -697,6 +895,7 @@ public class CKEditorConfig implements Serializable {
 		return readOnly != null && readOnly.booleanValue();
 	}
 	public void setReadOnly(boolean v) {
+		changed();
 		readOnly = v;
 	}
 
@@ -706,6 +905,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param cssFiles zero or more String file URL paths -- for same system, starting with context path is recommended: /myapp/path/to/cssfile.css
 	 */
 	public void setContentsCss(String... cssFiles) {
+		changed();
 		contentsCssFiles = cssFiles;
 	}
 	
@@ -716,6 +916,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param bc
 	 */
 	public void setBodyClass(String bc) {
+		changed();
 		bodyClass = bc;
 	}
 	
@@ -745,6 +946,7 @@ public class CKEditorConfig implements Serializable {
 		return list;
 	}
 	public void setFontNames(List<String> fontNamesSpec) {
+		changed();
 		if ( fontNamesSpec != null && fontNamesSpec.size() > 0 ) {
 			StringBuilder buf = new StringBuilder( (fontNamesSpec.size()+1) * 80);
 			for( String spec : fontNamesSpec ) {
@@ -757,6 +959,7 @@ public class CKEditorConfig implements Serializable {
 		}
 	}
 	public void addFontName(String newFontNameSpec) {
+		changed();
 		LinkedList<String> newFontNames = new LinkedList<String>();
 		boolean fontNeedsInsert = true;
 		for( String fontName : getFontNameList() ) {
@@ -769,6 +972,7 @@ public class CKEditorConfig implements Serializable {
 		setFontNames(newFontNames);
 	}
 	public void setFontNames(String fontNamesSpec) {
+		changed();
 		fontNames = fontNamesSpec;
 	}
 	
@@ -777,14 +981,23 @@ public class CKEditorConfig implements Serializable {
 	 * @param styleSetSpec
 	 */
 	public void setStylesSet(String styleSetSpec) {
+		changed();
 		stylesSet = styleSetSpec;
 	}
+
+	/**
+	 * @return the stylesSet spec, or null if CKEditor's default styles.js is used
+	 */
+	public String getStylesSet() {
+		return stylesSet;
+	}
 	
 	/**
 	 * Sets the filebrowserBrowseUrl config option, which is an URL that will list files a user can select from
 	 * @param url
 	 */
 	public void setFilebrowserBrowseUrl(String url) {
+		changed();
 		filebrowserBrowseUrl = url;
 	}
 	
@@ -793,6 +1006,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserUploadUrl(String url) {
+		changed();
 		filebrowserUploadUrl = url;
 	}
 	
@@ -801,6 +1015,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserWindowWidth(String size) {
+		changed();
 		filebrowserWindowWidth = size;
 	}
 	
@@ -809,6 +1024,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserWindowHeight(String size) {
+		changed();
 		filebrowserWindowHeight = size;
 	}
 	
@@ -817,6 +1033,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserImageBrowseUrl(String url) {
+		changed();
 		filebrowserImageBrowseUrl = url;
 	}
 	
@@ -825,6 +1042,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserImageUploadUrl(String url) {
+		changed();
 		filebrowserImageUploadUrl = url;
 	}
 	
@@ -833,6 +1051,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserImageWindowWidth(String size) {
+		changed();
 		filebrowserImageWindowWidth = size;
 	}
 	
@@ -841,6 +1060,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserImageWindowHeight(String size) {
+		changed();
 		filebrowserImageWindowHeight = size;
 	}
 	
@@ -850,6 +1070,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserFlashBrowseUrl(String url) {
+		changed();
 		filebrowserFlashBrowseUrl = url;
 	}
 	
@@ -858,6 +1079,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserFlashUploadUrl(String url) {
+		changed();
 		filebrowserFlashUploadUrl = url;
 	}
 	
@@ -866,6 +1088,7 @@ public class CKEditorConfig implements Serializable {
 	 * @param url
 	 */
 	public void setFilebrowserLinkBrowseUrl(String url) {
+		changed();
 		filebrowserLinkBrowseUrl = url;
 	}
 
@@ -879,6 +1102,7 @@ public class CKEditorConfig implements Serializable {
      */
     public void setFilebrowserFlashBrowseLinkUrl(String url) 
     {
+        changed();
         filebrowserFlashBrowseLinkUrl = url;
     }
 
@@ -891,6 +1115,7 @@ public class CKEditorConfig implements Serializable {
      */
     public void setFilebrowserImageBrowseLinkUrl(String url) 
     {
+        changed();
         filebrowserImageBrowseLinkUrl = url;
     }
 
@@ -900,6 +1125,8 @@ public class CKEditorConfig implements Serializable {
      * @param templateURL 
      */
     public synchronized void addTemplatesFiles(String templateURL) {
+    	changed();
+    	templates_files = own(templates_files);
     	if ( templates_files == null ) {
     		templates_files = new LinkedList<String>();
     	}
@@ -914,6 +1141,7 @@ public class CKEditorConfig implements Serializable {
      * @see #setEnterMode(int) to just set by integer value
      */
 	public void setEnterMode(String enterMode) {
+		changed();
 		if ("BR".equalsIgnoreCase(enterMode)) 
 			this.enterMode = 2;
 		else if ("DIV".equalsIgnoreCase(enterMode)) 
@@ -922,6 +1150,7 @@ public class CKEditorConfig implements Serializable {
 			this.enterMode = 1;
 	}
 	public void setEnterMode(int enterMode) {
+		changed();
 		this.enterMode = enterMode;
 	}
 
@@ -931,6 +1160,7 @@ public class CKEditorConfig implements Serializable {
      * @see #setShiftEnterMode(int) to just set by integer value
      */
 	public void setShiftEnterMode(String shiftEnterMode) {
+		changed();
 		if ("BR".equalsIgnoreCase(shiftEnterMode)) 
 			this.shiftEnterMode = 2;
 		else if ("DIV".equalsIgnoreCase(shiftEnterMode)) 
@@ -939,26 +1169,39 @@ public class CKEditorConfig implements Serializable {
 			this.shiftEnterMode = 1;
 	}
 	public void setShiftEnterMode(int shiftEnterMode) {
+		changed();
 		this.shiftEnterMode = shiftEnterMode;
 	}
 
 	public void setForceEnterMode(Boolean forceEnterMode) {
+		changed();
 		this.forceEnterMode = forceEnterMode;
 	}
 
 	public void setForcePasteAsPlainText(Boolean forcePasteAsPlainText) {
+		changed();
 		this.forcePasteAsPlainText = forcePasteAsPlainText;
 	}
 
 	public void setLanguage(String language) {
+		changed();
 		this.language = language;
 	}
 
+	/**
+	 * @return the language set, or null to let CKEditor detect it from the browser
+	 */
+	public String getLanguage() {
+		return language;
+	}
+
 	public void setTemplatesReplaceContent(Boolean templatesReplaceContent) {
+		changed();
 		this.templates_replaceContent = templatesReplaceContent;
 	}
 
 	public void setFullPage(Boolean fullPage) {
+		changed();
 		this.fullPage = fullPage;
 	}
         
@@ -972,6 +1215,8 @@ public class CKEditorConfig implements Serializable {
      * @param regex the String regular expression of the protected source 
      */
     public synchronized void addProtectedSource(String regex) {
+    	changed();
+    	protectedSource = own(protectedSource);
     	if ( protectedSource == null ) {
     		protectedSource = new LinkedList<String>();
     	}
@@ -987,22 +1232,28 @@ public class CKEditorConfig implements Serializable {
     	return protectedSource != null && protectedSource.size() > 0;
     }
     
+    /**
+     * @return the protected source regular expressions, read only, or null if there are none
+     */
     public List<String> getProtectedSource() {
-		return protectedSource;
+		return protectedSource == null ? null : Collections.unmodifiableList(protectedSource);
     }
 
     // Advanced content filtering added in CKEditor 4.1
     public void setAllowedContent(String acfSpec)
     {
+    	changed();
     	allowedContent = acfSpec;
     }
     // Basically allows all content and disables ACF
     public void setAllowedContentAll() {
+    	changed();
     	allowedContent = "true";
     }
     
     public void setExtraAllowedContent(String acfSpec)
     {
+    	changed();
     	extraAllowedContent = acfSpec;
     }
 
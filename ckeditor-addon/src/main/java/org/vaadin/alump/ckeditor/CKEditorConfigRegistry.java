@@ -0,0 +1,139 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.server.*;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigData;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigRpc;
+
+import java.util.*;
+
+/**
+ * Sendet die Konfigurationen der Editoren einer UI nur einmal zum Client. Jede Konfiguration wird unter einem
+ * Fingerabdruck ihres Inhalts registriert, die Felder übertragen in ihrem State nur diesen Fingerabdruck. Gleich
+ * konfigurierte Editoren teilen sich dadurch eine Übertragung, und der Client parst die Konfiguration nur einmal.
+ * <p>
+ * Eine Konfiguration, die kein Feld der UI mehr verwendet, wird entfernt und beim Client abgemeldet, so wachsen weder
+ * die Registry noch die Caches im Browser mit jeder je verwendeten Konfiguration.
+ * <p>
+ * Wird von {@link AbstractCKEditorTextField} automatisch als Erweiterung der UI angelegt.
+ */
+public class CKEditorConfigRegistry extends AbstractExtension
+{
+  private final Map<String, CKEditorConfigData> configs = new LinkedHashMap<>();
+  private final Set<String> sent = new HashSet<>();
+  private final Map<Component, String> fields = new HashMap<>(); // Fingerabdruck je Feld
+
+  /**
+   * Liefert die Registry einer UI und legt sie beim ersten Aufruf an
+   *
+   * @param pUI die UI
+   * @return die Registry
+   */
+  public static CKEditorConfigRegistry get(UI pUI)
+  {
+    for (Extension extension : pUI.getExtensions())
+      if (extension instanceof CKEditorConfigRegistry)
+        return (CKEditorConfigRegistry) extension;
+
+    CKEditorConfigRegistry registry = new CKEditorConfigRegistry();
+    registry.extend(pUI);
+    return registry;
+  }
+
+  /**
+   * Registriert die Konfiguration eines Felds. Sie wird mit der nächsten Antwort zum Client gesendet, wenn er sie noch
+   * nicht hat. Eine vorher für das Feld registrierte Konfiguration wird ersetzt.
+   *
+   * @param pField                das Feld
+   * @param pConfig               die Konfiguration
+   * @param pCompressionThreshold Mindestlänge, ab der die In-Page-Konfiguration komprimiert wird
+   * @return der Fingerabdruck der Konfiguration
+   */
+  public String register(Component pField, CKEditorConfig pConfig, int pCompressionThreshold)
+  {
+    // Die Konfiguration hält ihren Fingerabdruck selbst, bis sie geändert wird
+    String fingerprint = pConfig.getFingerprint();
+    if (!configs.containsKey(fingerprint))
+    {
+      CKEditorConfigData data = _toData(pConfig);
+      data.inPageConfig = CKEditorCompression.encode(data.inPageConfig, pCompressionThreshold);
+      configs.put(fingerprint, data);
+    }
+    String previous = fields.put(pField, fingerprint);
+    if (!sent.contains(fingerprint) || (previous != null && !previous.equals(fingerprint)))
+      markAsDirty();
+    return fingerprint;
+  }
+
+  /**
+   * Gibt die Konfiguration eines Felds frei, das von der UI entfernt wird
+   *
+   * @param pField das Feld
+   */
+  public void release(Component pField)
+  {
+    if (fields.remove(pField) != null)
+      markAsDirty();
+  }
+
+  @Override
+  public void beforeClientResponse(boolean pInitial)
+  {
+    super.beforeClientResponse(pInitial);
+    // Ein neu geladener Client hat noch keine Konfiguration
+    if (pInitial)
+      sent.clear();
+    _prune();
+    for (Map.Entry<String, CKEditorConfigData> entry : configs.entrySet())
+      if (sent.add(entry.getKey()))
+        getRpcProxy(CKEditorConfigRpc.class).register(entry.getKey(), entry.getValue());
+  }
+
+  /**
+   * Entfernt die Konfigurationen, die kein Feld der UI mehr verwendet
+   */
+  private void _prune()
+  {
+    fields.keySet().removeIf(field -> field.getUI() != getUI());
+    Collection<String> used = fields.values();
+    for (Iterator<String> it = configs.keySet().iterator(); it.hasNext(); )
+    {
+      String fingerprint = it.next();
+      if (used.contains(fingerprint))
+        continue;
+      it.remove();
+      if (sent.remove(fingerprint))
+        getRpcProxy(CKEditorConfigRpc.class).unregister(fingerprint);
+    }
+  }
+
+  private static CKEditorConfigData _toData(CKEditorConfig pConfig)
+  {
+    // Der Client liest alles mit JSON.parse, siehe CKEditorJson
+    CKEditorConfigData data = new CKEditorConfigData();
+    data.inPageConfig = CKEditorJson.toJson(pConfig.getInPageConfig());
+    data.inline = pConfig.isInlineMode();
+    if (pConfig.hasWriterRules())
+    {
+      data.writerRules = new TreeMap<>();
+      for (String tagName : pConfig.getWriterRulesTagNames())
+        data.writerRules.put(tagName, CKEditorJson.toJson(pConfig.getWriterRuleByTagName(tagName)));
+    }
+    if (pConfig.hasWriterIndentationChars())
+      data.writerIndentationChars = pConfig.getWriterIndentationChars();
+    if (pConfig.hasKeystrokeMappings())
+    {
+      data.keystrokes = new TreeMap<>();
+      for (Integer keystroke : pConfig.getKeystrokes())
+        data.keystrokes.put(keystroke, pConfig.getKeystrokeCommandByKeystroke(keystroke));
+    }
+    if (pConfig.hasProtectedSource())
+    {
+      data.protectedSource = new ArrayList<>();
+      for (String regex : pConfig.getProtectedSource())
+        data.protectedSource.add(CKEditorJson.toJson(regex));
+    }
+    return data;
+  }
+}
@@ -3,11 +3,9 @@ package org.vaadin.alump.ckeditor;
 import com.vaadin.server.*;
 
 import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.logging.Logger;
 import java.util.stream.*;
-import java.util.zip.*;
 
 /**
  * Klasse um alle benötigten Bibliotheken und Plugins des CKEditors bereitzustellen
@@ -16,119 +14,213 @@ import java.util.zip.*;
  */
 public class CKEditorDependencyManager
 {
-  private static final String ROOT_PATH = "/org/vaadin/alump/ckeditor/";
   private static final String BLACKLISTED_EXTENSION = ".class";
   private static final Set<String> BLACKLISTED_FILES = Stream.of("editor/ckeditor.js", "vaadin-save-plugin.js").collect(Collectors.toSet());
+  private static final Object RESOURCES_LOCK = new Object();
+  private static final String DEFAULT_SKIN = "moono-lisa";
+  private static final String DEFAULT_LANGUAGE = "en";
 
   /**
-   * Registriert alle Dependencies die für den CKEditor notwendig sind
+   * Index aller veröffentlichbaren Resourcen. Wird pro ClassLoader nur einmal geladen und ist danach unveränderlich.
+   * Volatile, damit der fertig geladene Index ohne Lock sicher von allen Sessions gelesen werden kann.
+   */
+  private static volatile CKEditorResourceIndex resourceIndex;
+
+  /**
+   * Registriert alle Dependencies die für den CKEditor notwendig sind. Pro Session passiert das nur einmal,
+   * weitere Aufrufe sind ein No-Op (siehe {@link CKEditorSessionRegistry}).
    */
   public static void registerDependencies()
   {
-    LegacyCommunicationManager manager = VaadinSession.getCurrent().getCommunicationManager();
-    Set<String> resources = _collectResources();
+    VaadinSession session = VaadinSession.getCurrent();
+    CKEditorResourceIndex index = getResourceIndex();
+    Set<String> resources = index.getPaths();
+    // Der Fingerprint gehört zum Schlüssel, damit nach invalidateResources() neue Dateien registriert werden
+    if (!CKEditorSessionRegistry.get(session).markRegistered("editor@" + index.getFingerprint(), resources.size()))
+      return;
+
+    LegacyCommunicationManager manager = session.getCommunicationManager();
     resources.forEach(r -> {
       manager.registerDependency(r, CKEditorDependencyManager.class);
     });
   }
 
   /**
-   * Liefert alle Resourcen aus einem normalen Ordner
+   * Registriert nur die Dependencies, die für die übergebene Konfiguration notwendig sind: den Kern, die Sprache,
+   * die effektiven Plugins (eingebaute und <tt>extraPlugins</tt> ohne <tt>removePlugins</tt>) und den Skin.
+   * Kommt später eine Konfiguration mit weiteren Plugins oder Sprachen hinzu, werden nur diese nachregistriert.
+   * Beispiele und nicht verwendete Sprachen werden nie veröffentlicht.
    *
-   * @param pFolder Ordner auf der Festplatte
-   * @return Map
+   * @param pConfig die Konfiguration des Editors, bei <tt>null</tt> oder einer reinen JavaScript-Konfiguration
+   *                wird alles registriert
+   * @param pLocale Locale des Browsers, wird verwendet wenn die Konfiguration keine Sprache vorgibt
    */
-  private static Set<String> _loadResourcesFromNormalFolder(File pFolder)
+  public static void registerDependencies(CKEditorConfig pConfig, Locale pLocale)
   {
-    File[] children = pFolder.listFiles((dir, name) -> _shouldPublishFile(name));
-    if (children == null)
-      throw new IllegalStateException("Failed to load children from folder " + pFolder);
+    if (pConfig == null || pConfig.hasCustomInPageConfig())
+    {
+      registerDependencies();
+      return;
+    }
 
-    // Hier können Kinder direkt aus dem Ordner ausgelesen werden
-    return Arrays.stream(children).map(file -> _getRelativeFilename(file.getName())).collect(Collectors.toSet());
+    VaadinSession session = VaadinSession.getCurrent();
+    CKEditorResourceIndex index = getResourceIndex();
+    CKEditorSessionRegistry registry = CKEditorSessionRegistry.get(session);
+    LegacyCommunicationManager manager = session.getCommunicationManager();
+    for (String group : _getRequiredGroups(index, pConfig, pLocale))
+    {
+      List<String> resources = index.getGroup(group);
+      if (!resources.isEmpty() && registry.markRegistered(group + "@" + index.getFingerprint(), resources.size()))
+        resources.forEach(r -> manager.registerDependency(r, CKEditorDependencyManager.class));
+    }
   }
 
   /**
-   * Gibt den relativen Filename aus dem Absoluten zurück
+   * Ermittelt die Gruppen des Index, die für eine Konfiguration benötigt werden
    *
-   * @param pAbsoluteFilename der absolute Filename
-   * @return der relative Filename
+   * @param pIndex  der Index
+   * @param pConfig die Konfiguration
+   * @param pLocale Locale des Browsers
+   * @return die Namen der Gruppen
    */
-  private static String _getRelativeFilename(String pAbsoluteFilename)
+  private static Set<String> _getRequiredGroups(CKEditorResourceIndex pIndex, CKEditorConfig pConfig, Locale pLocale)
   {
-    return pAbsoluteFilename.replace(ROOT_PATH.substring(1), "");
+    Set<String> groups = new LinkedHashSet<>();
+    groups.add(CKEditorResourceIndex.GROUP_CORE);
+    groups.add(CKEditorResourceIndex.GROUP_SKIN + (pConfig.getSkin() != null ? pConfig.getSkin() : DEFAULT_SKIN));
+
+    Set<String> languages = getLanguages(pIndex, pConfig, pLocale);
+    languages.forEach(l -> groups.add(CKEditorResourceIndex.GROUP_LANG + l));
+
+    for (String plugin : getEffectivePlugins(pIndex, pConfig))
+    {
+      groups.add(CKEditorResourceIndex.GROUP_PLUGIN + plugin);
+      languages.forEach(l -> groups.add(CKEditorResourceIndex.GROUP_PLUGIN_LANG + plugin + ":" + l));
+    }
+    return groups;
   }
 
   /**
-   * @return alle Resourcen, die zur Verfügung stehen
+   * Ermittelt die Plugins, die CKEditor mit der Konfiguration lädt
+   *
+   * @return die eingebauten Plugins und <tt>extraPlugins</tt>, ohne <tt>removePlugins</tt>
    */
-  private static Set<String> _collectResources()
+  static Set<String> getEffectivePlugins(CKEditorResourceIndex pIndex, CKEditorConfig pConfig)
   {
-    URL data = CKEditorDependencyManager.class.getResource(ROOT_PATH);
-    if (data == null)
-      return new HashSet<>();
-
-    File dataFolder = new File(data.getPath());
-    if (dataFolder.exists() && dataFolder.isDirectory())
-      return _loadResourcesFromNormalFolder(dataFolder);
-    else
-      return _loadResourcesFromInnerJar(data);
+    Set<String> plugins = new LinkedHashSet<>(pIndex.getBuiltInPlugins());
+    plugins.addAll(pConfig.getExtraPlugins());
+    plugins.removeAll(pConfig.getRemovePlugins());
+    return plugins;
   }
 
   /**
-   * Liefert alle Resourcen aus einer jar Datei
+   * Ermittelt die Sprachen, die CKEditor laden wird. Ohne konfigurierte Sprache erkennt CKEditor die Sprache des
+   * Browsers, als Rückfall wird immer auch die Standardsprache benötigt.
    *
-   * @param pJarFile URL zur Jar
-   * @return Map
+   * @return die Sprachen, die bevorzugte zuerst
    */
-  private static Set<String> _loadResourcesFromInnerJar(URL pJarFile)
+  static Set<String> getLanguages(CKEditorResourceIndex pIndex, CKEditorConfig pConfig, Locale pLocale)
   {
-    // Daten können NICHT direkt aus dem Verzeichnis gelesen werden.
-    // Beispielsweise wenn die XML-Dateien innerhalb einer JAR liegen
-    String[] split = pJarFile.toExternalForm().split("!");
-    if (split.length != 2)
-      return _loadResourcesFromNormalFolder(new File(pJarFile.getPath()));
+    Set<String> languages = new LinkedHashSet<>();
+    if (pConfig.getLanguage() != null)
+      languages.add(pConfig.getLanguage().toLowerCase());
+    else if (pLocale != null)
+    {
+      String language = pLocale.getLanguage().toLowerCase();
+      String withCountry = language + "-" + pLocale.getCountry().toLowerCase();
+      if (!pLocale.getCountry().isEmpty() && !pIndex.getGroup(CKEditorResourceIndex.GROUP_LANG + withCountry).isEmpty())
+        languages.add(withCountry);
+      else
+        languages.add(language);
+    }
+    languages.add(DEFAULT_LANGUAGE);
+    return languages;
+  }
 
-    String pathToJar = split[0];
-    if (pathToJar.startsWith("jar:file:"))
-      pathToJar = pathToJar.substring(9);
+  /**
+   * Liefert alle Resourcen des CKEditors. Die Menge wird beim ersten Aufruf ermittelt und danach
+   * von allen Sessions gemeinsam verwendet, sodass das Erzeugen eines Editors keine I/O mehr verursacht.
+   *
+   * @return unveränderliche Menge aller Resourcen, relativ zu {@link CKEditorResourceIndex#ROOT_PATH}
+   */
+  public static Set<String> getResources()
+  {
+    return getResourceIndex().getPaths();
+  }
 
-    try
+  /**
+   * Liefert den beim Build erzeugten Index aller Resourcen. Er wird mit einem einzigen Zugriff auf den
+   * Classpath geladen, das Editor-Verzeichnis selbst wird zur Laufzeit nicht durchsucht.
+   *
+   * @return der Index
+   */
+  public static CKEditorResourceIndex getResourceIndex()
+  {
+    CKEditorResourceIndex result = resourceIndex;
+    if (result == null)
     {
-      // Decode bspw. %20 zu " "
-      pathToJar = URLDecoder.decode(pathToJar, StandardCharsets.UTF_8.toString());
+      synchronized (RESOURCES_LOCK)
+      {
+        result = resourceIndex;
+        if (result == null)
+        {
+          result = _loadResourceIndex();
+          resourceIndex = result;
+        }
+      }
     }
-    catch (UnsupportedEncodingException pE)
+    return result;
+  }
+
+  /**
+   * Verwirft den zwischengespeicherten Index, damit er beim nächsten Zugriff neu geladen wird.
+   * Gedacht für den Entwicklungsmodus, wenn sich die Dateien des Editors zur Laufzeit ändern.
+   */
+  public static void invalidateResources()
+  {
+    synchronized (RESOURCES_LOCK)
     {
-      throw new RuntimeException("Failed to load Resources from system folder", pE);
+      resourceIndex = null;
+      CKEditorResourceHandler.clearCache();
     }
+  }
 
-    String pathInJar = split[1];
-    if (pathInJar.startsWith("/"))
-      pathInJar = pathInJar.substring(1);
+  /**
+   * @return der Index aus dem Classpath. Hat der Build keinen erzeugt, wird der Classpath durchsucht, und nur wenn
+   * auch dort kein Editor liegt, ist der Index leer.
+   */
+  private static CKEditorResourceIndex _loadResourceIndex()
+  {
+    CKEditorResourceIndex index = CKEditorResourceIndex.load();
+    if (index != null)
+      return index;
 
-    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(pathToJar)))
+    Logger logger = Logger.getLogger(CKEditorDependencyManager.class.getName());
+    logger.warning("No CKEditor resource index found in classpath, scanning the editor files instead. Run the Maven "
+                       + "build (process-classes) to generate " + CKEditorResourceIndex.INDEX_FILE + ".");
+    try
     {
-      Set<String> result = new HashSet<>();
-      for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry())
-        if (!entry.isDirectory() && entry.getName().startsWith(pathInJar) && _shouldPublishFile(entry.getName()))
-          result.add(_getRelativeFilename(entry.getName()));
-      return result;
+      index = CKEditorResourceIndex.scan();
     }
-    catch (Exception e)
+    catch (IOException e)
     {
-      throw new RuntimeException("Failed to load Resources from system folder", e);
+      throw new UncheckedIOException("Failed to scan the CKEditor resources", e);
     }
+    if (index != null)
+      return index;
+
+    logger.warning("No CKEditor files found in classpath, editor plugins and languages will not be available.");
+    return CKEditorResourceIndex.empty();
   }
 
   /**
-   * Prüft ob die übergebene File vom ignoriert und sommit nicht veröffentlicht werden soll.
+   * Prüft ob die übergebene Datei veröffentlicht werden soll. Wird beim Erzeugen des Index während des Builds verwendet.
    *
-   * @param pFilename der Dateiname
-   * @return true wenn die Datei ingoriert werden soll
+   * @param pRelativeFilename der Dateiname, relativ zu {@link CKEditorResourceIndex#ROOT_PATH}
+   * @return true wenn die Datei veröffentlicht werden soll
    */
-  private static boolean _shouldPublishFile(String pFilename)
+  static boolean shouldPublishFile(String pRelativeFilename)
   {
-    return !pFilename.endsWith(BLACKLISTED_EXTENSION) && !BLACKLISTED_FILES.contains(_getRelativeFilename(pFilename));
+    return !pRelativeFilename.endsWith(BLACKLISTED_EXTENSION) && !BLACKLISTED_FILES.contains(pRelativeFilename);
   }
 }
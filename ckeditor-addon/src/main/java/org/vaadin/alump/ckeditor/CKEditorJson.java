@@ -0,0 +1,440 @@
+package org.vaadin.alump.ckeditor;
+
+/**
+ * Wandelt die JavaScript-Notation der Konfiguration (In-Page-Konfiguration, Writer-Regeln, Protected Source) in
+ * striktes JSON, das der Client mit <code>JSON.parse</code> statt <code>eval</code> liest.
+ * <p>
+ * Objekte, Arrays, Strings in einfachen oder doppelten Anführungszeichen, Zahlen und Literale werden übernommen,
+ * Schlüssel ohne Anführungszeichen und Kommentare sind erlaubt. Werte ohne JSON-Entsprechung werden typisiert
+ * übertragen:
+ * <ul>
+ * <li>reguläre Ausdrücke als <code>{"$regex": "source", "flags": "g"}</code></li>
+ * <li>alles andere, z.B. Funktionen oder <code>CKEDITOR.ENTER_BR</code>, als <code>{"$js": "source"}</code>, das der
+ * Client als einziges noch auswertet</li>
+ * </ul>
+ */
+class CKEditorJson
+{
+  static final String TYPE_REGEX = "$regex";
+  static final String TYPE_JS = "$js";
+
+  private CKEditorJson()
+  {
+  }
+
+  /**
+   * @param pJavaScript ein Wert in JavaScript-Notation, kann <tt>null</tt> sein
+   * @return der Wert als striktes JSON
+   */
+  static String toJson(String pJavaScript)
+  {
+    if (pJavaScript == null || pJavaScript.trim().isEmpty())
+      return null;
+    StringBuilder json = new StringBuilder(pJavaScript.length() + 64);
+    _Parser parser = new _Parser(pJavaScript, json);
+    parser.value();
+    parser.skipWhitespace();
+    if (parser.pos < pJavaScript.length())
+    {
+      // Nicht als ein Wert lesbar, der Client wertet das Ganze aus
+      json.setLength(0);
+      _appendTyped(json, TYPE_JS, pJavaScript.trim());
+    }
+    return json.toString();
+  }
+
+  /**
+   * Hängt einen String in Anführungszeichen an
+   */
+  static void quote(StringBuilder pJson, String pValue)
+  {
+    pJson.append('"');
+    for (int i = 0; i < pValue.length(); i++)
+    {
+      char c = pValue.charAt(i);
+      switch (c)
+      {
+        case '"':
+          pJson.append("\\\"");
+          break;
+        case '\\':
+          pJson.append("\\\\");
+          break;
+        case '\n':
+          pJson.append("\\n");
+          break;
+        case '\r':
+          pJson.append("\\r");
+          break;
+        case '\t':
+          pJson.append("\\t");
+          break;
+        default:
+          if (c < 0x20)
+            pJson.append(String.format("\\u%04x", (int) c));
+          else
+            pJson.append(c);
+      }
+    }
+    pJson.append('"');
+  }
+
+  private static void _appendTyped(StringBuilder pJson, String pType, String pSource)
+  {
+    pJson.append('{');
+    quote(pJson, pType);
+    pJson.append(':');
+    quote(pJson, pSource);
+    pJson.append('}');
+  }
+
+  /**
+   * Liest JavaScript-Werte und schreibt sie als JSON. Ein Wert, auf den kein Trennzeichen folgt, ist ein Ausdruck und
+   * wird als ganzes typisiert übertragen.
+   */
+  private static class _Parser
+  {
+    private final String source;
+    private final StringBuilder json;
+    private int pos;
+
+    private _Parser(String pSource, StringBuilder pJson)
+    {
+      source = pSource;
+      json = pJson;
+    }
+
+    void value()
+    {
+      skipWhitespace();
+      int start = pos;
+      int mark = json.length();
+      if (!_literal() || !_atDelimiter())
+      {
+        pos = start;
+        json.setLength(mark);
+        _appendTyped(json, TYPE_JS, _expression());
+      }
+    }
+
+    /**
+     * @return <tt>false</tt>, wenn an der Position kein JSON-fähiger Wert steht
+     */
+    private boolean _literal()
+    {
+      if (pos >= source.length())
+        return false;
+      char c = source.charAt(pos);
+      if (c == '{')
+        return _object();
+      if (c == '[')
+        return _array();
+      if (c == '\'' || c == '"')
+      {
+        String string = _string();
+        if (string == null)
+          return false;
+        quote(json, string);
+        return true;
+      }
+      if (c == '/')
+        return _regex();
+      if (c == '-' || c == '.' || Character.isDigit(c))
+        return _number();
+      String identifier = _identifier();
+      if ("true".equals(identifier) || "false".equals(identifier) || "null".equals(identifier))
+      {
+        json.append(identifier);
+        return true;
+      }
+      return false;
+    }
+
+    private boolean _object()
+    {
+      pos++;
+      json.append('{');
+      boolean first = true;
+      while (true)
+      {
+        skipWhitespace();
+        if (pos >= source.length())
+          return false;
+        if (source.charAt(pos) == '}')
+          break;
+        String key;
+        char c = source.charAt(pos);
+        if (c == '\'' || c == '"')
+          key = _string();
+        else
+        {
+          key = _identifier();
+          if (key == null)
+            key = _numberToken();
+        }
+        skipWhitespace();
+        if (key == null || pos >= source.length() || source.charAt(pos) != ':')
+          return false;
+        pos++;
+        if (!first)
+          json.append(',');
+        first = false;
+        quote(json, key);
+        json.append(':');
+        value();
+        if (!_separator('}'))
+          return false;
+      }
+      pos++;
+      json.append('}');
+      return true;
+    }
+
+    private boolean _array()
+    {
+      pos++;
+      json.append('[');
+      boolean first = true;
+      while (true)
+      {
+        skipWhitespace();
+        if (pos >= source.length())
+          return false;
+        if (source.charAt(pos) == ']')
+          break;
+        if (!first)
+          json.append(',');
+        first = false;
+        value();
+        if (!_separator(']'))
+          return false;
+      }
+      pos++;
+      json.append(']');
+      return true;
+    }
+
+    /**
+     * Überspringt das Komma nach einem Element, ein abschließendes Komma ist erlaubt
+     */
+    private boolean _separator(char pEnd)
+    {
+      skipWhitespace();
+      if (pos >= source.length())
+        return false;
+      char c = source.charAt(pos);
+      if (c == ',')
+      {
+        pos++;
+        return true;
+      }
+      return c == pEnd;
+    }
+
+    private String _string()
+    {
+      char quote = source.charAt(pos++);
+      StringBuilder string = new StringBuilder();
+      while (pos < source.length())
+      {
+        char c = source.charAt(pos++);
+        if (c == quote)
+          return string.toString();
+        if (c != '\\')
+        {
+          string.append(c);
+          continue;
+        }
+        if (pos >= source.length())
+          return null;
+        char escaped = source.charAt(pos++);
+        switch (escaped)
+        {
+          case 'n':
+            string.append('\n');
+            break;
+          case 'r':
+            string.append('\r');
+            break;
+          case 't':
+            string.append('\t');
+            break;
+          case 'b':
+            string.append('\b');
+            break;
+          case 'f':
+            string.append('\f');
+            break;
+          case 'v':
+            string.append('\u000b');
+            break;
+          case '0':
+            string.append('\u0000');
+            break;
+          case 'x':
+          case 'u':
+            int length = escaped == 'x' ? 2 : 4;
+            if (pos + length > source.length())
+              return null;
+            try
+            {
+              string.append((char) Integer.parseInt(source.substring(pos, pos + length), 16));
+            }
+            catch (NumberFormatException e)
+            {
+              return null;
+            }
+            pos += length;
+            break;
+          case '\r':
+            if (pos < source.length() && source.charAt(pos) == '\n')
+              pos++;
+            break;
+          case '\n':
+            break;
+          default:
+            string.append(escaped);
+        }
+      }
+      return null;
+    }
+
+    private boolean _regex()
+    {
+      int start = ++pos;
+      boolean inClass = false;
+      while (pos < source.length())
+      {
+        char c = source.charAt(pos);
+        if (c == '\n')
+          return false;
+        if (c == '\\')
+          pos++;
+        else if (c == '[')
+          inClass = true;
+        else if (c == ']')
+          inClass = false;
+        else if (c == '/' && !inClass)
+          break;
+        pos++;
+      }
+      if (pos >= source.length())
+        return false;
+      String regex = source.substring(start, pos++);
+      int flagsStart = pos;
+      while (pos < source.length() && Character.isLetter(source.charAt(pos)))
+        pos++;
+      json.append('{');
+      quote(json, TYPE_REGEX);
+      json.append(':');
+      quote(json, regex);
+      json.append(",\"flags\":");
+      quote(json, source.substring(flagsStart, pos));
+      json.append('}');
+      return true;
+    }
+
+    private boolean _number()
+    {
+      String number = _numberToken();
+      if (number == null || !number.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?"))
+        return false;
+      json.append(number);
+      return true;
+    }
+
+    private String _numberToken()
+    {
+      int start = pos;
+      if (pos < source.length() && source.charAt(pos) == '-')
+        pos++;
+      while (pos < source.length())
+      {
+        char c = source.charAt(pos);
+        if (Character.isLetterOrDigit(c) || c == '.')
+          pos++;
+        else if ((c == '+' || c == '-') && (source.charAt(pos - 1) == 'e' || source.charAt(pos - 1) == 'E'))
+          pos++;
+        else
+          break;
+      }
+      return pos > start ? source.substring(start, pos) : null;
+    }
+
+    private String _identifier()
+    {
+      int start = pos;
+      while (pos < source.length() && (Character.isJavaIdentifierPart(source.charAt(pos))))
+        pos++;
+      if (pos == start || Character.isDigit(source.charAt(start)))
+      {
+        pos = start;
+        return null;
+      }
+      return source.substring(start, pos);
+    }
+
+    /**
+     * Liest einen beliebigen Ausdruck bis zum nächsten Trennzeichen außerhalb von Klammern und Strings
+     */
+    private String _expression()
+    {
+      int start = pos;
+      int depth = 0;
+      while (pos < source.length())
+      {
+        char c = source.charAt(pos);
+        if (c == '\'' || c == '"' || c == '`')
+        {
+          pos++;
+          while (pos < source.length() && source.charAt(pos) != c)
+            pos += source.charAt(pos) == '\\' ? 2 : 1;
+        }
+        else if (c == '(' || c == '[' || c == '{')
+          depth++;
+        else if (c == ')' || c == ']' || c == '}')
+        {
+          if (depth == 0)
+            break;
+          depth--;
+        }
+        else if (c == ',' && depth == 0)
+          break;
+        pos++;
+      }
+      pos = Math.min(pos, source.length());
+      return source.substring(start, pos).trim();
+    }
+
+    private boolean _atDelimiter()
+    {
+      skipWhitespace();
+      if (pos >= source.length())
+        return true;
+      char c = source.charAt(pos);
+      return c == ',' || c == '}' || c == ']';
+    }
+
+    void skipWhitespace()
+    {
+      while (pos < source.length())
+      {
+        char c = source.charAt(pos);
+        if (Character.isWhitespace(c))
+          pos++;
+        else if (c == '/' && source.startsWith("//", pos))
+        {
+          int end = source.indexOf('\n', pos);
+          pos = end < 0 ? source.length() : end + 1;
+        }
+        else if (c == '/' && source.startsWith("/*", pos))
+        {
+          int end = source.indexOf("*/", pos + 2);
+          pos = end < 0 ? source.length() : end + 2;
+        }
+        else
+          break;
+      }
+    }
+  }
+}
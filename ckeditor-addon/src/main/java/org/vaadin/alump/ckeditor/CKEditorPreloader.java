@@ -0,0 +1,109 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.server.*;
+import com.vaadin.ui.UI;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorPreloaderState;
+
+/**
+ * Lädt die Bibliothek des CKEditors (ckeditor.js) vor, damit das erste Öffnen eines Editors nicht auf den Download
+ * warten muss. Es gibt zwei Wege, die auch kombiniert werden können:
+ * <ul>
+ * <li>Als Erweiterung einer UI über {@link #extend(UI)}: der Client lädt und parst die Bibliothek, sobald der
+ * Browser nach dem Start der UI im Leerlauf ist (<tt>requestIdleCallback</tt>).</li>
+ * <li>Über den Parameter {@value #PARAMETER_ENABLED} (Servlet-Init-Parameter oder System-Property): die Bootstrap-Seite
+ * jeder UI erhält einen <tt>&lt;link rel="preload"&gt;</tt>, der Browser lädt die Datei dann parallel zum Start.</li>
+ * </ul>
+ * In beiden Fällen wird dieselbe URL wie für die JavaScript-Annotation der Komponente verwendet, die Datei wird also
+ * nur einmal geladen.
+ */
+public class CKEditorPreloader extends AbstractExtension
+{
+  public static final String PARAMETER_ENABLED = "ckeditor.preload";
+  private static final String LIBRARY = "editor/ckeditor.js";
+
+  /**
+   * Erweitert eine UI um das Vorladen. Mehrfache Aufrufe für dieselbe UI verwenden dieselbe Erweiterung.
+   *
+   * @param pUI die UI
+   * @return die Erweiterung
+   */
+  public static CKEditorPreloader extend(UI pUI)
+  {
+    for (Extension extension : pUI.getExtensions())
+      if (extension instanceof CKEditorPreloader)
+        return (CKEditorPreloader) extension;
+
+    CKEditorPreloader preloader = new CKEditorPreloader();
+    preloader.extend(pUI);
+    return preloader;
+  }
+
+  /**
+   * @param pService der Service
+   * @return true, wenn das Vorladen über die Bootstrap-Seite für den Service aktiviert ist
+   */
+  public static boolean isEnabled(VaadinService pService)
+  {
+    return pService != null && Boolean.parseBoolean(pService.getDeploymentConfiguration()
+                                                        .getApplicationOrSystemProperty(PARAMETER_ENABLED, "false", false));
+  }
+
+  @Override
+  public void attach()
+  {
+    super.attach();
+    getState().libraryUrl = _registerLibrary(getSession());
+  }
+
+  @Override
+  protected CKEditorPreloaderState getState()
+  {
+    return (CKEditorPreloaderState) super.getState();
+  }
+
+  /**
+   * Registriert ckeditor.js wie die JavaScript-Annotation der Komponente, damit die Datei vor dem ersten Editor
+   * ausgeliefert werden darf
+   *
+   * @return die URL als <tt>published://</tt> URI
+   */
+  private static String _registerLibrary(VaadinSession pSession)
+  {
+    return pSession.getCommunicationManager().registerDependency(LIBRARY, AbstractCKEditorTextField.class);
+  }
+
+  /**
+   * Ergänzt die Bootstrap-Seite um einen <tt>&lt;link rel="preload"&gt;</tt> für ckeditor.js
+   */
+  static class BootstrapLink implements BootstrapListener
+  {
+    @Override
+    public void modifyBootstrapFragment(BootstrapFragmentResponse pResponse)
+    {
+    }
+
+    @Override
+    public void modifyBootstrapPage(BootstrapPageResponse pResponse)
+    {
+      _registerLibrary(pResponse.getSession());
+      pResponse.getDocument().head().appendElement("link")
+          .attr("rel", "preload")
+          .attr("as", "script")
+          .attr("href", _getServiceRoot(pResponse.getRequest().getPathInfo()) + "APP/PUBLISHED/" + LIBRARY);
+    }
+
+    /**
+     * Ermittelt wie Vaadin den relativen Pfad von der Bootstrap-Seite zurück zum Servlet, damit die URL genau der
+     * entspricht, die der Client für die Annotation verwendet
+     */
+    private static String _getServiceRoot(String pPathInfo)
+    {
+      StringBuilder root = new StringBuilder("./");
+      if (pPathInfo != null)
+        for (int i = 1; i < pPathInfo.length(); i++)
+          if (pPathInfo.charAt(i) == '/')
+            root.append("../");
+      return root.toString();
+    }
+  }
+}
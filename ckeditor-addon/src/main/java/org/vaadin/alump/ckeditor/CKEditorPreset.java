@@ -0,0 +1,187 @@
+package org.vaadin.alump.ckeditor;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * An immutable, shareable editor configuration. The config of a preset is frozen, so any number of fields and
+ * sessions can use the same instance, and its in-page config and fingerprint are built only once.
+ * <p>
+ * Variants are derived from a base preset. A derived preset shares the option lists and maps of its base until it
+ * changes them, and only the changed ones are copied:
+ * <pre>
+ * CKEditorPreset compact = CKEditorPreset.builder()
+ *     .configure(config -&gt; config.useCompactTags())
+ *     .register("compact");
+ * CKEditorPreset review = compact.derive()
+ *     .configure(config -&gt; config.setReadOnly(true))
+ *     .register("review");
+ *
+ * new CKEditorTextField(CKEditorPreset.get("review").getConfig());
+ * </pre>
+ * Registered presets are global to the application, so all sessions reference the same instances.
+ *
+ * @see CKEditorConfig#freeze()
+ */
+public final class CKEditorPreset implements Serializable
+{
+  private static final Map<String, CKEditorPreset> PRESETS = new ConcurrentHashMap<>();
+
+  private final CKEditorConfig config;
+
+  private CKEditorPreset(CKEditorConfig config)
+  {
+    this.config = config.freeze();
+  }
+
+  /**
+   * @return a builder for a preset starting with an empty config
+   */
+  public static Builder builder()
+  {
+    return new Builder(new CKEditorConfig());
+  }
+
+  /**
+   * @param config the config to start with, it is copied and not changed by the builder
+   * @return a builder for a preset starting with the given config
+   */
+  public static Builder builder(CKEditorConfig config)
+  {
+    return new Builder(config.copy());
+  }
+
+  /**
+   * @return a builder for a variant of this preset
+   */
+  public Builder derive()
+  {
+    return new Builder(config.copy());
+  }
+
+  /**
+   * @return the frozen config of the preset
+   */
+  public CKEditorConfig getConfig()
+  {
+    return config;
+  }
+
+  /**
+   * @return the fingerprint of the config, equal for presets with the same content
+   * @see CKEditorConfig#getFingerprint()
+   */
+  public String getFingerprint()
+  {
+    return config.getFingerprint();
+  }
+
+  /**
+   * Registers a preset under a name, replacing a preset registered before
+   *
+   * @param name the name
+   * @param preset the preset
+   * @return the preset
+   */
+  public static CKEditorPreset register(String name, CKEditorPreset preset)
+  {
+    PRESETS.put(name, preset);
+    return preset;
+  }
+
+  /**
+   * @param name the name of the preset
+   * @return the registered preset, or null if there is none with the name
+   */
+  public static CKEditorPreset get(String name)
+  {
+    return PRESETS.get(name);
+  }
+
+  /**
+   * @param name the name of the preset
+   * @param factory creates the preset if none is registered with the name yet
+   * @return the registered preset
+   */
+  public static CKEditorPreset get(String name, Supplier<CKEditorPreset> factory)
+  {
+    return PRESETS.computeIfAbsent(name, key -> factory.get());
+  }
+
+  /**
+   * @return the names of the registered presets
+   */
+  public static Set<String> getNames()
+  {
+    return Collections.unmodifiableSet(PRESETS.keySet());
+  }
+
+  /**
+   * @param name the name of the preset
+   * @return the removed preset, or null if there was none with the name
+   */
+  public static CKEditorPreset unregister(String name)
+  {
+    return PRESETS.remove(name);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "CKEditorPreset[" + config.getFingerprint() + "]";
+  }
+
+  /**
+   * Collects the options of a preset. A builder is used by one thread and for one preset.
+   */
+  public static final class Builder implements Serializable
+  {
+    private CKEditorConfig config;
+
+    private Builder(CKEditorConfig config)
+    {
+      this.config = config;
+    }
+
+    /**
+     * @param configurer sets options on the config of the preset
+     * @return this builder
+     */
+    public Builder configure(Consumer<CKEditorConfig> configurer)
+    {
+      if (config == null)
+        throw new IllegalStateException("The preset is already built");
+      configurer.accept(config);
+      return this;
+    }
+
+    /**
+     * @return the preset, the builder can not be used anymore
+     */
+    public CKEditorPreset build()
+    {
+      if (config == null)
+        throw new IllegalStateException("The preset is already built");
+      CKEditorPreset preset = new CKEditorPreset(config);
+      config = null;
+      return preset;
+    }
+
+    /**
+     * Builds the preset and registers it under a name
+     *
+     * @param name the name
+     * @return the preset
+     * @see CKEditorPreset#register(String, CKEditorPreset)
+     */
+    public CKEditorPreset register(String name)
+    {
+      return CKEditorPreset.register(name, build());
+    }
+  }
+}
@@ -0,0 +1,368 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.server.*;
+import com.vaadin.shared.ApplicationConstants;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Liefert die Dateien des CKEditors direkt aus einem Cache im Speicher aus, ohne die Session zu sperren.
+ * <p>
+ * Unter <tt>APP/ckeditor/&lt;Fingerprint&gt;/</tt> werden die Dateien mit einem starken ETag und
+ * <tt>Cache-Control: immutable</tt> ausgeliefert. Der Fingerprint des {@link CKEditorResourceIndex} ändert sich mit
+ * jeder Datei, daher darf der Browser diese URLs unbegrenzt cachen. Der Client setzt <tt>CKEDITOR.basePath</tt> auf
+ * diesen Pfad, sodass alle nachgeladenen Plugins, Sprachen und Skins darüber laufen.
+ * <p>
+ * Zusätzlich werden die über <tt>APP/PUBLISHED/editor/</tt> angefragten Dateien (z.B. ckeditor.js aus der
+ * JavaScript-Annotation) aus dem Cache beantwortet, dort mit Revalidierung über den ETag. Unter
+ * <tt>APP/ckeditor/&lt;Fingerprint&gt;/bundle/</tt> liefert er die Bundles des {@link CKEditorScriptBundler}.
+ * <p>
+ * Liegen neben einer Datei beim Build erzeugte Varianten (<tt>.br</tt>, <tt>.gz</tt>), wird anhand von
+ * <tt>Accept-Encoding</tt> die kleinste vom Browser akzeptierte ausgeliefert. Zur Laufzeit wird nichts komprimiert.
+ * <p>
+ * Aktiviert wird der Handler über den Parameter {@value #PARAMETER_ENABLED} (Servlet-Init-Parameter oder
+ * System-Property), siehe {@link CKEditorServiceInitListener}.
+ */
+public class CKEditorResourceHandler implements RequestHandler
+{
+  public static final String PARAMETER_ENABLED = "ckeditor.resourceHandler";
+  static final String PATH_PREFIX = "APP/ckeditor/";
+  private static final String PUBLISHED_PREFIX = "APP/PUBLISHED/";
+  private static final String EDITOR_PREFIX = "editor/";
+  private static final String CORE_SCRIPT = "editor/ckeditor.js";
+  private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+  private static final String CACHE_REVALIDATE = "no-cache";
+  // Reihenfolge der Präferenz, Brotli ist in der Regel kleiner als gzip
+  private static final String[][] ENCODINGS = {{"br", CKEditorResourceIndex.BROTLI_SUFFIX}, {"gzip", CKEditorResourceIndex.GZIP_SUFFIX}};
+
+  private static final Map<String, CachedResource> CACHE = new ConcurrentHashMap<>();
+
+  /**
+   * @param pService der Service
+   * @return true, wenn der Handler für den Service aktiviert ist
+   */
+  public static boolean isEnabled(VaadinService pService)
+  {
+    return pService != null && Boolean.parseBoolean(pService.getDeploymentConfiguration()
+                                                        .getApplicationOrSystemProperty(PARAMETER_ENABLED, "false", false));
+  }
+
+  /**
+   * @return Basis-URL des Editors mit dem aktuellen Fingerprint, als <tt>app://</tt> URI für den Client
+   */
+  public static String getEditorBasePath()
+  {
+    return ApplicationConstants.APP_PROTOCOL_PREFIX + PATH_PREFIX
+        + CKEditorDependencyManager.getResourceIndex().getFingerprint() + "/" + EDITOR_PREFIX;
+  }
+
+  /**
+   * Leert den Cache, z.B. wenn sich die Dateien im Entwicklungsmodus geändert haben
+   */
+  public static void clearCache()
+  {
+    CACHE.clear();
+    CKEditorScriptBundler.clearCache();
+  }
+
+  @Override
+  public boolean handleRequest(VaadinSession pSession, VaadinRequest pRequest, VaadinResponse pResponse) throws IOException
+  {
+    String pathInfo = pRequest.getPathInfo();
+    if (pathInfo == null)
+      return false;
+    if (pathInfo.startsWith("/"))
+      pathInfo = pathInfo.substring(1);
+
+    String path;
+    boolean fingerprinted;
+    if (pathInfo.startsWith(PATH_PREFIX))
+    {
+      String rest = pathInfo.substring(PATH_PREFIX.length());
+      int slash = rest.indexOf('/');
+      if (slash < 0)
+        return false;
+      path = rest.substring(slash + 1);
+      fingerprinted = rest.substring(0, slash).equals(CKEditorDependencyManager.getResourceIndex().getFingerprint());
+    }
+    else if (pathInfo.startsWith(PUBLISHED_PREFIX + EDITOR_PREFIX))
+    {
+      path = pathInfo.substring(PUBLISHED_PREFIX.length());
+      fingerprinted = false;
+    }
+    else
+      return false;
+
+    CachedResource resource;
+    if (fingerprinted && path.startsWith(CKEditorScriptBundler.BUNDLE_PREFIX))
+      resource = CKEditorScriptBundler.getBundle(path.substring(CKEditorScriptBundler.BUNDLE_PREFIX.length()));
+    else
+      resource = _getResource(pRequest.getService(), path);
+    if (resource == null)
+    {
+      // Unbekannte Pfade unter APP/PUBLISHED bleiben dem PublishedFileHandler von Vaadin überlassen
+      if (!fingerprinted && pathInfo.startsWith(PUBLISHED_PREFIX))
+        return false;
+      pResponse.sendError(404, "Resource not found");
+      return true;
+    }
+
+    _write(pRequest, pResponse, resource, fingerprinted ? CACHE_IMMUTABLE : CACHE_REVALIDATE);
+    return true;
+  }
+
+  /**
+   * Schreibt eine Datei inkl. Unterstützung für bedingte Anfragen und einen einzelnen Byte-Bereich
+   */
+  private static void _write(VaadinRequest pRequest, VaadinResponse pResponse, CachedResource pResource, String pCacheControl)
+      throws IOException
+  {
+    String range = pRequest.getHeader("Range");
+    // Byte-Bereiche beziehen sich immer auf die unkomprimierte Datei
+    String encoding = range == null ? selectEncoding(pRequest.getHeader("Accept-Encoding"), pResource.variants.keySet()) : null;
+    byte[] data = encoding != null ? pResource.variants.get(encoding) : pResource.data;
+    String etag = encoding != null ? pResource.etag.substring(0, pResource.etag.length() - 1) + "-" + encoding + "\"" : pResource.etag;
+
+    pResponse.setHeader("ETag", etag);
+    pResponse.setHeader("Cache-Control", pCacheControl);
+    pResponse.setHeader("Accept-Ranges", "bytes");
+    if (!pResource.variants.isEmpty())
+      pResponse.setHeader("Vary", "Accept-Encoding");
+
+    String ifNoneMatch = pRequest.getHeader("If-None-Match");
+    if (ifNoneMatch != null && ifNoneMatch.contains(etag))
+    {
+      pResponse.setStatus(304);
+      return;
+    }
+
+    if (encoding != null)
+      pResponse.setHeader("Content-Encoding", encoding);
+
+    int start = 0;
+    int end = data.length - 1;
+    if (range != null && isRangeAllowed(pRequest.getHeader("If-Range"), etag))
+    {
+      int[] bounds = parseRange(range, data.length);
+      if (bounds == null)
+      {
+        pResponse.setStatus(416);
+        pResponse.setHeader("Content-Range", "bytes */" + data.length);
+        return;
+      }
+      if (bounds.length == 2)
+      {
+        start = bounds[0];
+        end = bounds[1];
+        pResponse.setStatus(206);
+        pResponse.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+      }
+    }
+
+    pResponse.setContentType(pResource.contentType);
+    pResponse.setContentLength(end - start + 1);
+    if (!"HEAD".equals(pRequest.getMethod()))
+    {
+      // Die Daten liegen bereits komplett im Speicher und werden in einem Stück ohne weitere Kopie geschrieben
+      OutputStream out = pResponse.getOutputStream();
+      out.write(data, start, end - start + 1);
+      out.flush();
+    }
+  }
+
+  /**
+   * Wählt die bevorzugte Kodierung, die sowohl vorhanden ist als auch vom Browser akzeptiert wird
+   *
+   * @param pAcceptEncoding der Header <tt>Accept-Encoding</tt>, kann <tt>null</tt> sein
+   * @param pAvailable      die vorhandenen Kodierungen
+   * @return die Kodierung oder <tt>null</tt> für die unkomprimierte Datei
+   */
+  static String selectEncoding(String pAcceptEncoding, Set<String> pAvailable)
+  {
+    if (pAcceptEncoding == null || pAvailable.isEmpty())
+      return null;
+
+    Set<String> accepted = new HashSet<>();
+    Set<String> refused = new HashSet<>();
+    for (String token : pAcceptEncoding.split(","))
+    {
+      String[] parts = token.trim().split(";");
+      String name = parts[0].trim().toLowerCase(Locale.ROOT);
+      boolean zero = false;
+      for (int i = 1; i < parts.length; i++)
+      {
+        String param = parts[i].trim().toLowerCase(Locale.ROOT);
+        if (param.startsWith("q="))
+          zero = param.substring(2).trim().matches("0(\\.0*)?");
+      }
+      if (zero)
+        refused.add(name);
+      else
+        accepted.add(name);
+    }
+
+    // Eine mit q=0 abgelehnte Kodierung gilt auch dann nicht, wenn '*' akzeptiert wird
+    for (String[] encoding : ENCODINGS)
+      if (pAvailable.contains(encoding[0]) && !refused.contains(encoding[0])
+          && (accepted.contains(encoding[0]) || accepted.contains("*")))
+        return encoding[0];
+    return null;
+  }
+
+  /**
+   * Prüft den Header <tt>If-Range</tt>. Verglichen wird streng, ein schwaches ETag passt also nie. Ein Datum passt
+   * ebenfalls nie, da kein <tt>Last-Modified</tt> gesendet wird.
+   *
+   * @param pIfRange der Header, kann <tt>null</tt> sein
+   * @param pEtag    das ETag der ausgelieferten Datei
+   * @return true, wenn der Range-Header ausgewertet werden darf, sonst wird die ganze Datei gesendet
+   */
+  static boolean isRangeAllowed(String pIfRange, String pEtag)
+  {
+    if (pIfRange == null)
+      return true;
+    String ifRange = pIfRange.trim();
+    return !ifRange.startsWith("W/") && ifRange.equals(pEtag);
+  }
+
+  /**
+   * Wertet einen Range-Header mit genau einem Bereich aus
+   *
+   * @param pRange  der Header
+   * @param pLength Länge der Datei
+   * @return Start und Ende (inklusive), ein leeres Array wenn der Header ignoriert wird (mehrere Bereiche,
+   * unbekannte Einheit, fehlerhafte Syntax) oder <tt>null</tt> wenn der Bereich nicht erfüllbar ist
+   */
+  static int[] parseRange(String pRange, int pLength)
+  {
+    if (!pRange.startsWith("bytes=") || pRange.indexOf(',') >= 0)
+      return new int[0];
+
+    String spec = pRange.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0)
+      return new int[0];
+
+    String first = spec.substring(0, dash).trim();
+    String last = spec.substring(dash + 1).trim();
+    // Nur Ziffern, damit z.B. "bytes=--5" oder "bytes=+1-2" ignoriert statt als Zahl gelesen werden
+    if (!first.matches("\\d*") || !last.matches("\\d*") || (first.isEmpty() && last.isEmpty()))
+      return new int[0];
+
+    // Als long gelesen, damit zu große Werte auf das Dateiende begrenzt werden
+    long start;
+    long end;
+    if (first.isEmpty())
+    {
+      // Suffix: die letzten n Bytes
+      long suffix = _parseBound(last);
+      if (suffix == 0)
+        return null;
+      start = Math.max(0, pLength - suffix);
+      end = pLength - 1;
+    }
+    else
+    {
+      start = _parseBound(first);
+      end = last.isEmpty() ? Long.MAX_VALUE : _parseBound(last);
+      if (end < start)
+        return new int[0];
+      end = Math.min(end, pLength - 1);
+    }
+    if (start >= pLength)
+      return null;
+    return new int[]{(int) start, (int) end};
+  }
+
+  private static long _parseBound(String pDigits)
+  {
+    // Mehr als 18 Ziffern passen nicht in ein long, sind aber in jedem Fall größer als die Datei
+    return pDigits.length() > 18 ? Long.MAX_VALUE : Long.parseLong(pDigits);
+  }
+
+  /**
+   * Liefert eine Datei aus dem Cache und lädt sie beim ersten Zugriff einmalig aus dem Classpath.
+   * Ausgeliefert werden nur Dateien aus dem Index sowie ckeditor.js.
+   */
+  private static CachedResource _getResource(VaadinService pService, String pPath) throws IOException
+  {
+    CachedResource resource = CACHE.get(pPath);
+    if (resource != null)
+      return resource;
+
+    if (!CORE_SCRIPT.equals(pPath) && CKEditorDependencyManager.getResourceIndex().getEntry(pPath) == null)
+      return null;
+
+    byte[] data = read(pPath);
+    if (data == null)
+      return null;
+
+    Map<String, byte[]> variants = new HashMap<>();
+    for (String[] encoding : ENCODINGS)
+    {
+      byte[] variant = read(pPath + encoding[1]);
+      if (variant != null)
+        variants.put(encoding[0], variant);
+    }
+
+    String contentType = pService.getMimeType(pPath.substring(pPath.lastIndexOf('/') + 1));
+    resource = new CachedResource(data, variants, contentType != null ? contentType : "application/octet-stream");
+    CachedResource existing = CACHE.putIfAbsent(pPath, resource);
+    return existing != null ? existing : resource;
+  }
+
+  /**
+   * Erzeugt einen Eintrag für zur Laufzeit zusammengestellte Inhalte. Die gzip-Variante wird dabei einmalig erzeugt.
+   *
+   * @param pData        der Inhalt
+   * @param pContentType der Content-Type
+   * @return der Eintrag
+   */
+  static CachedResource createResource(byte[] pData, String pContentType) throws IOException
+  {
+    Map<String, byte[]> variants = new HashMap<>();
+    byte[] compressed = CKEditorResourceIndex.gzip(pData);
+    if (compressed != null)
+      variants.put("gzip", compressed);
+    return new CachedResource(pData, variants, pContentType);
+  }
+
+  /**
+   * @param pPath Pfad relativ zu {@link CKEditorResourceIndex#ROOT_PATH}
+   * @return Inhalt der Datei aus dem Classpath oder <tt>null</tt>, wenn es sie nicht gibt
+   */
+  static byte[] read(String pPath) throws IOException
+  {
+    try (InputStream is = CKEditorResourceHandler.class.getResourceAsStream(CKEditorResourceIndex.ROOT_PATH + pPath))
+    {
+      if (is == null)
+        return null;
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] chunk = new byte[16384];
+      for (int read = is.read(chunk); read >= 0; read = is.read(chunk))
+        buffer.write(chunk, 0, read);
+      return buffer.toByteArray();
+    }
+  }
+
+  /**
+   * Inhalt einer Datei mit dem daraus abgeleiteten ETag und den vorkomprimierten Varianten
+   */
+  static class CachedResource
+  {
+    private final byte[] data;
+    private final Map<String, byte[]> variants;
+    private final String etag;
+    private final String contentType;
+
+    private CachedResource(byte[] pData, Map<String, byte[]> pVariants, String pContentType)
+    {
+      data = pData;
+      variants = pVariants;
+      etag = "\"" + CKEditorResourceIndex.hash(pData) + "\"";
+      contentType = pContentType;
+    }
+  }
+}
@@ -0,0 +1,472 @@
+package org.vaadin.alump.ckeditor;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/**
+ * Index aller veröffentlichbaren Dateien des CKEditors. Der Index wird während des Maven-Builds
+ * (Phase process-classes) über {@link #main(String[])} erzeugt und liegt danach als kleine Textdatei im Classpath.
+ * Zur Laufzeit muss das Editor-Verzeichnis dadurch nicht mehr durchsucht werden, außer der Build hat keinen Index
+ * erzeugt (siehe {@link #scan()}).
+ * <p>
+ * Format: Kopfzeilen beginnen mit '#', jede weitere Zeile beschreibt eine Datei als
+ * <code>Pfad TAB Größe TAB Hash</code>. Der Pfad ist relativ zu {@link #ROOT_PATH}.
+ * <p>
+ * Für Skripte und Stylesheets des Editors werden beim Build zusätzlich mit gzip vorkomprimierte Varianten
+ * (<tt>.gz</tt>) neben der Datei abgelegt, die der {@link CKEditorResourceHandler} ohne Rechenaufwand ausliefert.
+ * <p>
+ * Die Dateien werden in Gruppen eingeteilt (Kern, Sprachen, Plugins, Skins), damit nur die Teile veröffentlicht
+ * werden müssen, die eine Konfiguration tatsächlich benötigt.
+ */
+public class CKEditorResourceIndex implements Serializable
+{
+  static final String ROOT_PATH = "/org/vaadin/alump/ckeditor/";
+  static final String INDEX_FILE = "editor-resources.idx";
+  private static final String HEADER = "# CKEditor resource index";
+  private static final String FINGERPRINT_KEY = "#fingerprint ";
+  private static final String PLUGINS_KEY = "#plugins ";
+  private static final String CORE_KEY = "#core ";
+  private static final int HASH_BYTES = 8;
+
+  static final String GROUP_CORE = "core";
+  static final String GROUP_SAMPLES = "samples";
+  static final String GROUP_LANG = "lang:";
+  static final String GROUP_SKIN = "skin:";
+  static final String GROUP_PLUGIN = "plugin:";
+  static final String GROUP_PLUGIN_LANG = "plugin-lang:";
+  private static final String EDITOR_FOLDER = "editor/";
+  private static final String CORE_SCRIPT = EDITOR_FOLDER + "ckeditor.js";
+  static final String GZIP_SUFFIX = ".gz";
+  static final String BROTLI_SUFFIX = ".br";
+  private static final Set<String> COMPRESSIBLE_EXTENSIONS = Stream.of(".js", ".css", ".json", ".svg").collect(Collectors.toSet());
+  private static final double MIN_COMPRESSION_GAIN = 0.9;
+
+  private final Map<String, Entry> entries;
+  private final String fingerprint;
+  private final List<String> builtInPlugins;
+  private final Map<String, List<String>> groups;
+
+  private CKEditorResourceIndex(Map<String, Entry> pEntries, String pFingerprint, List<String> pBuiltInPlugins)
+  {
+    entries = Collections.unmodifiableMap(pEntries);
+    fingerprint = pFingerprint;
+    builtInPlugins = Collections.unmodifiableList(pBuiltInPlugins);
+    groups = Collections.unmodifiableMap(_group(entries.keySet()));
+  }
+
+  /**
+   * Lädt den beim Build erzeugten Index aus dem Classpath
+   *
+   * @return der Index, oder <tt>null</tt> wenn kein Index vorhanden ist
+   */
+  public static CKEditorResourceIndex load()
+  {
+    try (InputStream is = CKEditorResourceIndex.class.getResourceAsStream(ROOT_PATH + INDEX_FILE))
+    {
+      if (is == null)
+        return null;
+      return read(new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8)));
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Failed to read CKEditor resource index", e);
+    }
+  }
+
+  /**
+   * @return ein Index ohne Einträge
+   */
+  static CKEditorResourceIndex empty()
+  {
+    return new CKEditorResourceIndex(new LinkedHashMap<>(), _fingerprint(Collections.emptyList(), ""), Collections.emptyList());
+  }
+
+  /**
+   * Liest einen Index im oben beschriebenen Format
+   *
+   * @param pReader Quelle des Index
+   * @return der gelesene Index
+   */
+  static CKEditorResourceIndex read(BufferedReader pReader) throws IOException
+  {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    String fingerprint = null;
+    List<String> builtInPlugins = Collections.emptyList();
+    String coreHash = "";
+    for (String line = pReader.readLine(); line != null; line = pReader.readLine())
+    {
+      if (line.startsWith(FINGERPRINT_KEY))
+        fingerprint = line.substring(FINGERPRINT_KEY.length()).trim();
+      else if (line.startsWith(CORE_KEY))
+        coreHash = line.substring(CORE_KEY.length()).trim();
+      else if (line.startsWith(PLUGINS_KEY))
+        builtInPlugins = _splitPlugins(line.substring(PLUGINS_KEY.length()));
+      else if (!line.isEmpty() && !line.startsWith("#"))
+      {
+        String[] parts = line.split("\t");
+        if (parts.length != 3)
+          throw new IOException("Invalid CKEditor resource index line: " + line);
+        entries.put(parts[0], new Entry(parts[0], Long.parseLong(parts[1]), parts[2]));
+      }
+    }
+    if (fingerprint == null)
+      fingerprint = _fingerprint(entries.values(), coreHash);
+    return new CKEditorResourceIndex(entries, fingerprint, builtInPlugins);
+  }
+
+  /**
+   * @return alle Pfade des Index, relativ zu {@link #ROOT_PATH}
+   */
+  public Set<String> getPaths()
+  {
+    return entries.keySet();
+  }
+
+  /**
+   * @param pPath Pfad relativ zu {@link #ROOT_PATH}
+   * @return der Eintrag zum Pfad, oder <tt>null</tt> wenn die Datei nicht veröffentlicht wird
+   */
+  public Entry getEntry(String pPath)
+  {
+    return entries.get(pPath);
+  }
+
+  /**
+   * @return Hash über alle Einträge und ckeditor.js. Ändert sich, sobald sich eine einzige Datei des Editors ändert.
+   */
+  public String getFingerprint()
+  {
+    return fingerprint;
+  }
+
+  /**
+   * @return die Plugins, die im Build von ckeditor.js bereits enthalten sind
+   */
+  public List<String> getBuiltInPlugins()
+  {
+    return builtInPlugins;
+  }
+
+  /**
+   * @param pGroup Name der Gruppe, z.B. <tt>lang:de</tt> oder <tt>plugin:table</tt>
+   * @return alle Pfade der Gruppe, leer wenn es die Gruppe nicht gibt
+   */
+  public List<String> getGroup(String pGroup)
+  {
+    return groups.getOrDefault(pGroup, Collections.emptyList());
+  }
+
+  /**
+   * @return die Namen aller Gruppen
+   */
+  public Set<String> getGroupNames()
+  {
+    return groups.keySet();
+  }
+
+  /**
+   * Erzeugt den Index beim Build.
+   *
+   * @param args erstes Argument ist das Ausgabeverzeichnis der Klassen (target/classes)
+   */
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 1)
+      throw new IllegalArgumentException("Usage: CKEditorResourceIndex <outputDirectory>");
+
+    Path root = Paths.get(args[0], ROOT_PATH.substring(1));
+    Map<String, Entry> entries = new TreeMap<>();
+    _collect(root, entries, true);
+
+    Path coreScript = root.resolve(CORE_SCRIPT);
+    String coreHash = _hashCoreScript(coreScript);
+    try (Writer writer = Files.newBufferedWriter(root.resolve(INDEX_FILE), StandardCharsets.UTF_8))
+    {
+      writer.write(HEADER + "\n");
+      writer.write(FINGERPRINT_KEY + _fingerprint(entries.values(), coreHash) + "\n");
+      writer.write(CORE_KEY + coreHash + "\n");
+      writer.write(PLUGINS_KEY + String.join(",", _readBuiltInPlugins(coreScript)) + "\n");
+      for (Entry entry : entries.values())
+        writer.write(entry.toLine() + "\n");
+    }
+  }
+
+  /**
+   * Erzeugt den Index zur Laufzeit durch Durchsuchen des Classpath, wie vor dem Index beim Build. Nur ein Notbehelf,
+   * wenn der Build keinen Index erzeugt hat, z.B. beim Start aus der IDE, denn dafür wird jede Datei einmal gelesen.
+   *
+   * @return der Index, oder <tt>null</tt> wenn der Editor nicht im Classpath liegt
+   */
+  static CKEditorResourceIndex scan() throws IOException
+  {
+    // Über ckeditor.js gesucht, die Klassen können in einem anderen Verzeichnis als die Dateien des Editors liegen
+    URL url = CKEditorResourceIndex.class.getResource(ROOT_PATH + CORE_SCRIPT);
+    if (url == null)
+      return null;
+    URI uri;
+    try
+    {
+      uri = url.toURI();
+    }
+    catch (URISyntaxException e)
+    {
+      throw new IOException("Invalid CKEditor resource location " + url, e);
+    }
+    if (!"jar".equals(uri.getScheme()))
+      return _scan(Paths.get(uri));
+    try (FileSystem jar = FileSystems.newFileSystem(uri, Collections.emptyMap()))
+    {
+      return _scan(jar.provider().getPath(uri));
+    }
+    catch (FileSystemAlreadyExistsException e)
+    {
+      return _scan(Paths.get(uri));
+    }
+  }
+
+  /**
+   * @param pCoreScript ckeditor.js, liegt in {@link #EDITOR_FOLDER} unterhalb von {@link #ROOT_PATH}
+   */
+  private static CKEditorResourceIndex _scan(Path pCoreScript) throws IOException
+  {
+    Path root = pCoreScript.getParent().getParent();
+    Map<String, Entry> entries = new TreeMap<>();
+    _collect(root, entries, false);
+    return new CKEditorResourceIndex(entries, _fingerprint(entries.values(), _hashCoreScript(pCoreScript)),
+                                     _readBuiltInPlugins(pCoreScript));
+  }
+
+  /**
+   * Sammelt die veröffentlichbaren Dateien unterhalb von {@link #ROOT_PATH}
+   *
+   * @param pRoot          das Verzeichnis zu {@link #ROOT_PATH}
+   * @param pEntries       erhält die Einträge
+   * @param pWriteVariants true, um beim Build die gzip-Varianten abzulegen
+   */
+  private static void _collect(Path pRoot, Map<String, Entry> pEntries, boolean pWriteVariants) throws IOException
+  {
+    try (Stream<Path> files = Files.walk(pRoot))
+    {
+      for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList()))
+      {
+        String path = pRoot.relativize(file).toString().replace(File.separatorChar, '/');
+        if (path.equals(INDEX_FILE) || _isCompressedVariant(file))
+          continue;
+        byte[] data = Files.readAllBytes(file);
+        if (CKEditorDependencyManager.shouldPublishFile(path))
+          pEntries.put(path, new Entry(path, data.length, hash(data)));
+        if (pWriteVariants && _isCompressible(path))
+          _writeGzipVariant(file, data);
+      }
+    }
+  }
+
+  private static String _hashCoreScript(Path pCoreScript) throws IOException
+  {
+    return Files.exists(pCoreScript) ? hash(Files.readAllBytes(pCoreScript)) : "";
+  }
+
+  /**
+   * Liest die Liste der eingebauten Plugins aus <tt>CKEDITOR.config.plugins</tt> in ckeditor.js
+   *
+   * @param pCoreScript Pfad zu ckeditor.js
+   * @return die eingebauten Plugins
+   */
+  private static List<String> _readBuiltInPlugins(Path pCoreScript) throws IOException
+  {
+    if (!Files.exists(pCoreScript))
+      return Collections.emptyList();
+    Matcher matcher = Pattern.compile("plugins='([^']*)'").matcher(new String(Files.readAllBytes(pCoreScript), StandardCharsets.UTF_8));
+    return matcher.find() ? _splitPlugins(matcher.group(1)) : Collections.emptyList();
+  }
+
+  /**
+   * @return true für .gz und .br Dateien, die neben ihrer unkomprimierten Datei liegen
+   */
+  private static boolean _isCompressedVariant(Path pFile)
+  {
+    String name = pFile.getFileName().toString();
+    for (String suffix : Arrays.asList(GZIP_SUFFIX, BROTLI_SUFFIX))
+      if (name.endsWith(suffix) && Files.exists(pFile.resolveSibling(name.substring(0, name.length() - suffix.length()))))
+        return true;
+    return false;
+  }
+
+  private static boolean _isCompressible(String pPath)
+  {
+    return pPath.startsWith(EDITOR_FOLDER) && !pPath.startsWith(EDITOR_FOLDER + "samples/")
+        && COMPRESSIBLE_EXTENSIONS.contains(pPath.substring(Math.max(0, pPath.lastIndexOf('.'))));
+  }
+
+  /**
+   * Legt eine mit maximaler Stufe komprimierte gzip-Variante neben der Datei ab, sofern sie sich lohnt
+   */
+  private static void _writeGzipVariant(Path pFile, byte[] pData) throws IOException
+  {
+    byte[] compressed = gzip(pData);
+    Path variant = pFile.resolveSibling(pFile.getFileName() + GZIP_SUFFIX);
+    if (compressed != null)
+      Files.write(variant, compressed);
+    else
+      Files.deleteIfExists(variant);
+  }
+
+  /**
+   * Komprimiert Daten mit gzip auf maximaler Stufe
+   *
+   * @param pData die Daten
+   * @return die komprimierten Daten, oder <tt>null</tt> wenn sie nicht mindestens 10% kleiner sind
+   */
+  static byte[] gzip(byte[] pData) throws IOException
+  {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(pData.length / 2);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)
+    {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    })
+    {
+      gzip.write(pData);
+    }
+    return compressed.size() < pData.length * MIN_COMPRESSION_GAIN ? compressed.toByteArray() : null;
+  }
+
+  private static List<String> _splitPlugins(String pPlugins)
+  {
+    return Arrays.stream(pPlugins.split(","))
+        .map(String::trim)
+        .filter(p -> !p.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Teilt die Pfade in Gruppen ein. Sprachdateien innerhalb eines Plugins bilden eine eigene Gruppe je Sprache.
+   *
+   * @param pPaths alle Pfade des Index
+   * @return Gruppenname auf Pfade
+   */
+  private static Map<String, List<String>> _group(Set<String> pPaths)
+  {
+    Map<String, List<String>> groups = new HashMap<>();
+    for (String path : pPaths)
+      groups.computeIfAbsent(_getGroupName(path), k -> new ArrayList<>()).add(path);
+    groups.replaceAll((k, v) -> Collections.unmodifiableList(v));
+    return groups;
+  }
+
+  private static String _getGroupName(String pPath)
+  {
+    if (!pPath.startsWith(EDITOR_FOLDER))
+      return GROUP_CORE;
+
+    String[] segments = pPath.substring(EDITOR_FOLDER.length()).split("/");
+    if (segments.length < 2)
+      return GROUP_CORE;
+
+    switch (segments[0])
+    {
+      case "samples":
+        return GROUP_SAMPLES;
+      case "lang":
+        return GROUP_LANG + _stripExtension(segments[1]);
+      case "skins":
+        return GROUP_SKIN + segments[1];
+      case "plugins":
+        if (segments.length == 2)
+          return GROUP_CORE; // icons.png und icons_hidpi.png
+        for (int i = 2; i < segments.length - 1; i++)
+          if ("lang".equals(segments[i]))
+            return GROUP_PLUGIN_LANG + segments[1] + ":" + _stripExtension(segments[segments.length - 1]);
+        return GROUP_PLUGIN + segments[1];
+      default:
+        return GROUP_CORE;
+    }
+  }
+
+  private static String _stripExtension(String pFilename)
+  {
+    int dot = pFilename.lastIndexOf('.');
+    return dot < 0 ? pFilename : pFilename.substring(0, dot);
+  }
+
+  /**
+   * Berechnet einen gekürzten SHA-256 Hash als Hex-String
+   *
+   * @param pData die Daten
+   * @return der Hash
+   */
+  static String hash(byte[] pData)
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(pData);
+      StringBuilder builder = new StringBuilder(HASH_BYTES * 2);
+      for (int i = 0; i < HASH_BYTES; i++)
+        builder.append(String.format("%02x", digest[i]));
+      return builder.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  /**
+   * @param pEntries  die veröffentlichten Dateien
+   * @param pCoreHash Hash von ckeditor.js. Die Datei wird nicht veröffentlicht, aber vom
+   *                  {@link CKEditorResourceHandler} ausgeliefert, und bestimmt die eingebauten Plugins und damit die
+   *                  Bundles.
+   */
+  private static String _fingerprint(Collection<Entry> pEntries, String pCoreHash)
+  {
+    StringBuilder builder = new StringBuilder();
+    pEntries.forEach(e -> builder.append(e.toLine()).append('\n'));
+    builder.append(CORE_SCRIPT).append('\t').append(pCoreHash).append('\n');
+    return hash(builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Eine veröffentlichbare Datei mit Größe und Hash ihres Inhalts
+   */
+  public static class Entry implements Serializable
+  {
+    private final String path;
+    private final long size;
+    private final String hash;
+
+    Entry(String pPath, long pSize, String pHash)
+    {
+      path = pPath;
+      size = pSize;
+      hash = pHash;
+    }
+
+    public String getPath()
+    {
+      return path;
+    }
+
+    public long getSize()
+    {
+      return size;
+    }
+
+    public String getHash()
+    {
+      return hash;
+    }
+
+    String toLine()
+    {
+      return path + "\t" + size + "\t" + hash;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.shared.ApplicationConstants;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Fasst die Skripte, die CKEditor für eine Konfiguration nachladen würde, zu einem einzigen Bundle zusammen:
+ * die Sprachdatei, <tt>styles.js</tt>, die Plugins aus <tt>editor/plugins</tt> inkl. ihrer Abhängigkeiten
+ * (<tt>requires</tt>) und Sprachdateien sowie die Dialoge der Plugins. Der Client lädt das Bundle vor dem
+ * Erzeugen des Editors, CKEditor findet die Sprache, Plugins und Dialoge danach bereits registriert vor und
+ * fordert sie nicht mehr einzeln an.
+ * <p>
+ * Die Dateien sind bereits minifiziert und werden unverändert aneinandergehängt, damit die Lizenzhinweise erhalten
+ * bleiben. Bundles werden über einen Schlüssel aus Sprache und Plugins identifiziert, beim ersten Abruf einmalig
+ * erzeugt und in einem begrenzten LRU-Cache gehalten. Ausgeliefert werden sie vom {@link CKEditorResourceHandler}.
+ */
+public class CKEditorScriptBundler
+{
+  static final String BUNDLE_PREFIX = "bundle/";
+  private static final String BUNDLE_SUFFIX = ".js";
+  private static final String CONTENT_TYPE = "application/javascript";
+  private static final String PLUGINS_FOLDER = "editor/plugins/";
+  private static final String STYLES_SCRIPT = "editor/styles.js";
+  private static final String IE_SUFFIX = "_ie.js";
+  private static final int MAX_BUNDLES = 32;
+  private static final Pattern REQUIRES = Pattern.compile("requires\\s*:\\s*(?:\"([^\"]*)\"|'([^']*)'|\\[([^\\]]*)\\])");
+  private static final byte[] SEPARATOR = "\n;\n".getBytes(StandardCharsets.UTF_8);
+
+  private static final Map<String, Bundle> BUNDLES = Collections.synchronizedMap(new LinkedHashMap<String, Bundle>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Bundle> pEldest)
+    {
+      return size() > MAX_BUNDLES;
+    }
+  });
+
+  /**
+   * Liefert die URL des Bundles für eine Konfiguration und merkt sich das Bundle, damit es beim Abruf erzeugt
+   * werden kann. Dabei wird nichts gelesen, die Dateien werden erst beim ersten Abruf zusammengestellt.
+   *
+   * @param pConfig die Konfiguration des Editors
+   * @param pLocale Locale des Browsers, wird verwendet wenn die Konfiguration keine Sprache vorgibt
+   * @return die URL als <tt>app://</tt> URI für den Client, oder <tt>null</tt> bei einer reinen JavaScript-Konfiguration
+   */
+  public static String getBundleUrl(CKEditorConfig pConfig, Locale pLocale)
+  {
+    if (pConfig == null || pConfig.hasCustomInPageConfig())
+      return null;
+
+    CKEditorResourceIndex index = CKEditorDependencyManager.getResourceIndex();
+    String language = CKEditorDependencyManager.getLanguages(index, pConfig, pLocale).iterator().next();
+    List<String> plugins = new ArrayList<>(CKEditorDependencyManager.getEffectivePlugins(index, pConfig));
+    Collections.sort(plugins);
+    boolean defaultStyles = pConfig.getStylesSet() == null;
+
+    String spec = language + "|" + defaultStyles + "|" + String.join(",", plugins);
+    String key = CKEditorResourceIndex.hash(spec.getBytes(StandardCharsets.UTF_8));
+    BUNDLES.computeIfAbsent(key, k -> new Bundle(language, plugins, defaultStyles));
+    return ApplicationConstants.APP_PROTOCOL_PREFIX + CKEditorResourceHandler.PATH_PREFIX + index.getFingerprint() + "/"
+        + BUNDLE_PREFIX + key + BUNDLE_SUFFIX;
+  }
+
+  /**
+   * Verwirft alle Bundles, z.B. wenn sich die Dateien im Entwicklungsmodus geändert haben
+   */
+  public static void clearCache()
+  {
+    BUNDLES.clear();
+  }
+
+  /**
+   * Liefert ein Bundle und erzeugt es beim ersten Abruf
+   *
+   * @param pFilename Dateiname des Bundles aus der URL
+   * @return das Bundle, oder <tt>null</tt> wenn es unbekannt oder bereits verdrängt ist
+   */
+  static CKEditorResourceHandler.CachedResource getBundle(String pFilename) throws IOException
+  {
+    if (!pFilename.endsWith(BUNDLE_SUFFIX))
+      return null;
+    Bundle bundle = BUNDLES.get(pFilename.substring(0, pFilename.length() - BUNDLE_SUFFIX.length()));
+    return bundle != null ? bundle.getResource() : null;
+  }
+
+  /**
+   * Ermittelt die Dateien eines Bundles in der Reihenfolge, in der sie ausgeführt werden müssen
+   *
+   * @param pIndex         der Index
+   * @param pLanguage      die Sprache
+   * @param pPlugins       die effektiven Plugins
+   * @param pDefaultStyles true, wenn die Standard-Styles aus <tt>styles.js</tt> verwendet werden
+   * @return Pfade relativ zu {@link CKEditorResourceIndex#ROOT_PATH}
+   */
+  static List<String> resolveFiles(CKEditorResourceIndex pIndex, String pLanguage, List<String> pPlugins,
+                                   boolean pDefaultStyles) throws IOException
+  {
+    List<String> files = new ArrayList<>();
+    if (pDefaultStyles)
+      _addIfIndexed(pIndex, STYLES_SCRIPT, files);
+    _addIfIndexed(pIndex, "editor/lang/" + pLanguage + ".js", files);
+
+    Set<String> visited = new HashSet<>();
+    for (String plugin : pPlugins)
+      _addPlugin(pIndex, plugin, pLanguage, files, visited);
+    return files;
+  }
+
+  /**
+   * Fügt ein Plugin hinzu. Hat es eine eigene <tt>plugin.js</tt>, werden zuerst die Plugins aus <tt>requires</tt>
+   * hinzugefügt, danach das Plugin selbst und seine Sprachdatei, die <tt>CKEDITOR.plugins.setLang</tt> aufruft und
+   * daher ein registriertes Plugin voraussetzt. Eingebaute Plugins stecken bereits in ckeditor.js, von ihnen
+   * werden nur die Dialoge hinzugefügt.
+   */
+  private static void _addPlugin(CKEditorResourceIndex pIndex, String pPlugin, String pLanguage, List<String> pFiles,
+                                 Set<String> pVisited) throws IOException
+  {
+    if (!pVisited.add(pPlugin))
+      return;
+
+    String folder = PLUGINS_FOLDER + pPlugin + "/";
+    String pluginScript = folder + "plugin.js";
+    if (pIndex.getEntry(pluginScript) != null)
+    {
+      byte[] data = CKEditorResourceHandler.read(pluginScript);
+      if (data != null)
+        for (String required : parseRequires(new String(data, StandardCharsets.UTF_8)))
+          _addPlugin(pIndex, required, pLanguage, pFiles, pVisited);
+      pFiles.add(pluginScript);
+      _addIfIndexed(pIndex, folder + "lang/" + pLanguage + ".js", pFiles);
+    }
+
+    // Dialoge ersetzen über CKEDITOR.dialog.add den Pfad, den das Plugin später registriert, und werden beim
+    // Öffnen nicht mehr geladen. Sprachdateien der Dialoge lädt CKEditor unabhängig davon selbst.
+    // Varianten für den Internet Explorer (z.B. wsc_ie.js) wählt das Plugin je nach Browser, sie bleiben außen vor.
+    String dialogs = folder + "dialogs/";
+    for (String path : pIndex.getGroup(CKEditorResourceIndex.GROUP_PLUGIN + pPlugin))
+      if (path.startsWith(dialogs) && path.endsWith(".js") && !path.endsWith(IE_SUFFIX) && path.indexOf('/', dialogs.length()) < 0)
+        pFiles.add(path);
+  }
+
+  /**
+   * Liest die Abhängigkeiten aus einer <tt>plugin.js</tt>, als String (<tt>requires: 'a,b'</tt>) oder
+   * Array (<tt>requires: ['a', 'b']</tt>)
+   *
+   * @param pScript Inhalt der plugin.js
+   * @return die Namen der benötigten Plugins
+   */
+  static List<String> parseRequires(String pScript)
+  {
+    Matcher matcher = REQUIRES.matcher(pScript);
+    if (!matcher.find())
+      return Collections.emptyList();
+
+    String value = matcher.group(1) != null ? matcher.group(1) : matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+    List<String> requires = new ArrayList<>();
+    for (String name : value.split(","))
+    {
+      name = name.replace("\"", "").replace("'", "").trim();
+      if (!name.isEmpty())
+        requires.add(name);
+    }
+    return requires;
+  }
+
+  private static void _addIfIndexed(CKEditorResourceIndex pIndex, String pPath, List<String> pFiles)
+  {
+    if (pIndex.getEntry(pPath) != null)
+      pFiles.add(pPath);
+  }
+
+  /**
+   * Ein Bundle, dessen Inhalt erst beim ersten Abruf erzeugt wird
+   */
+  private static class Bundle
+  {
+    private final String language;
+    private final List<String> plugins;
+    private final boolean defaultStyles;
+    private CKEditorResourceHandler.CachedResource resource;
+
+    private Bundle(String pLanguage, List<String> pPlugins, boolean pDefaultStyles)
+    {
+      language = pLanguage;
+      plugins = pPlugins;
+      defaultStyles = pDefaultStyles;
+    }
+
+    private synchronized CKEditorResourceHandler.CachedResource getResource() throws IOException
+    {
+      if (resource == null)
+      {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (String path : resolveFiles(CKEditorDependencyManager.getResourceIndex(), language, plugins, defaultStyles))
+        {
+          byte[] data = CKEditorResourceHandler.read(path);
+          if (data == null)
+            continue;
+          // Das BOM am Anfang der Dateien gehört nicht mitten in das Bundle
+          int offset = data.length >= 3 && data[0] == (byte) 0xEF && data[1] == (byte) 0xBB && data[2] == (byte) 0xBF ? 3 : 0;
+          buffer.write(data, offset, data.length - offset);
+          buffer.write(SEPARATOR);
+        }
+        resource = CKEditorResourceHandler.createResource(buffer.toByteArray(), CONTENT_TYPE);
+      }
+      return resource;
+    }
+  }
+}
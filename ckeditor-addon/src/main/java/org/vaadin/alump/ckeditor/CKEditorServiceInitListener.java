@@ -0,0 +1,20 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.server.*;
+
+/**
+ * Wird über <tt>META-INF/services</tt> automatisch von Vaadin geladen und installiert den
+ * {@link CKEditorResourceHandler}, wenn er über {@value CKEditorResourceHandler#PARAMETER_ENABLED} aktiviert wurde,
+ * sowie das Vorladen über die Bootstrap-Seite, wenn es über {@value CKEditorPreloader#PARAMETER_ENABLED} aktiviert wurde.
+ */
+public class CKEditorServiceInitListener implements VaadinServiceInitListener
+{
+  @Override
+  public void serviceInit(ServiceInitEvent pEvent)
+  {
+    if (CKEditorResourceHandler.isEnabled(pEvent.getSource()))
+      pEvent.addRequestHandler(new CKEditorResourceHandler());
+    if (CKEditorPreloader.isEnabled(pEvent.getSource()))
+      pEvent.getSource().addSessionInitListener(e -> e.getSession().addBootstrapListener(new CKEditorPreloader.BootstrapLink()));
+  }
+}
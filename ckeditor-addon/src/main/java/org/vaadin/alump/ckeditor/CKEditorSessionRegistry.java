@@ -0,0 +1,58 @@
+package org.vaadin.alump.ckeditor;
+
+import com.vaadin.server.VaadinSession;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Merkt sich pro {@link VaadinSession}, welche Resourcen-Mengen des CKEditors bereits beim
+ * {@link com.vaadin.server.LegacyCommunicationManager} registriert wurden. Wiederholte Registrierungen
+ * derselben Menge werden dadurch in konstanter Zeit übersprungen.
+ * Alle Zugriffe erfolgen unter dem Lock der Session.
+ */
+public class CKEditorSessionRegistry implements Serializable
+{
+  private final Set<String> registeredKeys = new HashSet<>();
+  private long avoidedRegistrations;
+
+  /**
+   * Liefert die Registry der übergebenen Session und legt sie bei Bedarf an
+   *
+   * @param pSession die Session, deren Lock gehalten werden muss
+   * @return die Registry der Session
+   */
+  public static CKEditorSessionRegistry get(VaadinSession pSession)
+  {
+    CKEditorSessionRegistry registry = pSession.getAttribute(CKEditorSessionRegistry.class);
+    if (registry == null)
+    {
+      registry = new CKEditorSessionRegistry();
+      pSession.setAttribute(CKEditorSessionRegistry.class, registry);
+    }
+    return registry;
+  }
+
+  /**
+   * Markiert eine Resourcen-Menge als registriert
+   *
+   * @param pKey           eindeutiger Schlüssel der Menge
+   * @param pResourceCount Anzahl der Resourcen in der Menge, wird bei einer Wiederholung als vermieden gezählt
+   * @return true, wenn die Menge noch nicht registriert war und jetzt registriert werden muss
+   */
+  public boolean markRegistered(String pKey, int pResourceCount)
+  {
+    if (registeredKeys.add(pKey))
+      return true;
+    avoidedRegistrations += pResourceCount;
+    return false;
+  }
+
+  /**
+   * @return Anzahl der einzelnen Registrierungen, die in dieser Session eingespart wurden
+   */
+  public long getAvoidedRegistrations()
+  {
+    return avoidedRegistrations;
+  }
+}
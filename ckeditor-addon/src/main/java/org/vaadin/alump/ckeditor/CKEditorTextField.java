@@ -38,4 +38,8 @@ public class CKEditorTextField extends AbstractCKEditorTextField {
     public CKEditorTextField(CKEditorConfig config, String initialValue) {
         super(config, initialValue);
     }
+
+    public CKEditorTextField(CKEditorPreset preset) {
+        super(preset.getConfig());
+    }
 }
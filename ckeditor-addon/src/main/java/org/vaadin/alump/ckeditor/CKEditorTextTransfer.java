@@ -0,0 +1,119 @@
+package org.vaadin.alump.ckeditor;
+
+import org.vaadin.alump.ckeditor.client.shared.TextChunk;
+
+import java.io.Serializable;
+
+/**
+ * Setzt einen Text zusammen, den der Client in mehreren Teilen sendet, siehe {@link TextChunk}. Der Puffer wächst
+ * mit den angekommenen Teilen und nie über die angekündigte Länge hinaus, die erst am Ende mit der Prüfsumme geprüft
+ * wird. Übertragungen über der erlaubten Länge werden schon beim ersten Teil abgelehnt.
+ * <p>
+ * Auf jeden Teil antwortet der Server mit der Nummer des nächsten erwarteten Teils. Doppelte Teile werden ignoriert,
+ * bei einer Lücke setzt der Client mit dem erwarteten Teil fort.
+ */
+class CKEditorTextTransfer implements Serializable
+{
+  /**
+   * Antwort für eine abgelehnte Übertragung, die der Client neu beginnen kann
+   */
+  static final int REJECTED = TextChunk.REJECTED;
+
+  /**
+   * Antwort für einen Text über der erlaubten Länge
+   */
+  static final int TOO_LARGE = TextChunk.TOO_LARGE;
+
+  private final String name;
+  private final int transfer;
+  private final int count;
+  private final String checksum;
+  private final int length;
+  private final StringBuilder buffer;
+  private int next;
+
+  private CKEditorTextTransfer(TextChunk pFirst, int pLength)
+  {
+    name = pFirst.name;
+    transfer = pFirst.transfer;
+    count = pFirst.count;
+    checksum = pFirst.checksum;
+    length = pLength;
+    buffer = new StringBuilder(Math.min(pLength, pFirst.data.length()));
+  }
+
+  /**
+   * Beginnt eine Übertragung mit ihrem ersten Teil
+   *
+   * @param pFirst     der erste Teil
+   * @param pMaxLength maximale Länge des ganzen Texts
+   * @return die Übertragung, oder <tt>null</tt> wenn sie ungültig oder zu groß ist, siehe {@link #isTooLarge}
+   */
+  static CKEditorTextTransfer start(TextChunk pFirst, int pMaxLength)
+  {
+    int length = pFirst.getTotalLength();
+    if (pFirst.index != 0 || pFirst.count <= 0 || length < 0 || isTooLarge(pFirst, pMaxLength))
+      return null;
+    return new CKEditorTextTransfer(pFirst, length);
+  }
+
+  /**
+   * @param pChunk     ein Teil
+   * @param pMaxLength maximale Länge des ganzen Texts
+   * @return true, wenn der ganze Text länger als erlaubt ist
+   */
+  static boolean isTooLarge(TextChunk pChunk, int pMaxLength)
+  {
+    return pChunk.getTotalLength() > pMaxLength;
+  }
+
+  /**
+   * @param pChunk ein Teil
+   * @return true, wenn der Teil zu dieser Übertragung gehört
+   */
+  boolean belongsTo(TextChunk pChunk)
+  {
+    return pChunk.transfer == transfer && pChunk.count == count && name.equals(pChunk.name) && checksum.equals(pChunk.checksum);
+  }
+
+  /**
+   * Nimmt einen Teil dieser Übertragung an
+   *
+   * @param pChunk der Teil
+   * @return die Nummer des nächsten erwarteten Teils, oder {@link #REJECTED} wenn der Text länger als angekündigt ist
+   */
+  int receive(TextChunk pChunk)
+  {
+    if (pChunk.index != next)
+      return next;
+    if (buffer.length() + pChunk.data.length() > length)
+      return REJECTED;
+    buffer.append(pChunk.data);
+    return ++next;
+  }
+
+  /**
+   * @return true, wenn alle Teile angekommen sind
+   */
+  boolean isComplete()
+  {
+    return next == count;
+  }
+
+  /**
+   * @return der Name der Variable, für die der Text bestimmt ist
+   */
+  String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return der zusammengesetzte Text, oder <tt>null</tt> wenn er nicht zur Prüfsumme passt
+   */
+  String getText()
+  {
+    String text = buffer.toString();
+    return TextChunk.checksum(text).equals(checksum) ? text : null;
+  }
+}
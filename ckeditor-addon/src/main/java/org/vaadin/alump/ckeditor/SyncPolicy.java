@@ -0,0 +1,117 @@
+package org.vaadin.alump.ckeditor;
+
+import java.io.Serializable;
+
+/**
+ * Controls when the client sends the text of the editor to the server while the user is typing. Blur, save and
+ * switching the mode always send the text right away.
+ * <p>
+ * A policy with a debounce delay sends the text once the user paused typing for that long, all changes made until then
+ * go to the server in one transfer. The maximum wait limits how long a user who keeps typing goes without a sync.
+ * With idle flush the client sends the text when the browser is idle instead of right when the delay ends, so a
+ * large document is not serialized in the middle of a keystroke.
+ * <p>
+ * Policies are immutable, the <code>with</code> methods return a new policy.
+ *
+ * @see AbstractCKEditorTextField#setSyncPolicy(SyncPolicy)
+ */
+public final class SyncPolicy implements Serializable
+{
+  /**
+   * Sends every change right away, as <code>setImmediate(true)</code> did
+   */
+  public static final SyncPolicy IMMEDIATE = new SyncPolicy(0, 0, false);
+
+  /**
+   * Sends changes with the next request to the server, e.g. caused by a button click, or on blur.
+   * The default, as <code>setImmediate(false)</code> did
+   */
+  public static final SyncPolicy WITH_NEXT_REQUEST = new SyncPolicy(-1, 0, false);
+
+  private final int debounce;
+  private final int maxWait;
+  private final boolean idleFlush;
+
+  private SyncPolicy(int debounce, int maxWait, boolean idleFlush)
+  {
+    this.debounce = debounce;
+    this.maxWait = maxWait;
+    this.idleFlush = idleFlush;
+  }
+
+  /**
+   * @param millis the time without changes after which the text is sent
+   * @return a policy that sends the text once the user paused typing for the given time
+   */
+  public static SyncPolicy debounce(int millis)
+  {
+    if (millis <= 0)
+      throw new IllegalArgumentException("debounce must be positive, use IMMEDIATE to send every change");
+    return new SyncPolicy(millis, 0, false);
+  }
+
+  /**
+   * @param millis the maximum time after the first change until the text is sent, 0 for no limit
+   * @return a new policy with the maximum wait
+   */
+  public SyncPolicy withMaxWait(int millis)
+  {
+    if (millis < 0)
+      throw new IllegalArgumentException("maxWait must not be negative");
+    return new SyncPolicy(debounce, millis, idleFlush);
+  }
+
+  /**
+   * @param idleFlush true to send the text when the browser is idle once a delay ended
+   * @return a new policy with idle flush
+   */
+  public SyncPolicy withIdleFlush(boolean idleFlush)
+  {
+    return new SyncPolicy(debounce, maxWait, idleFlush);
+  }
+
+  /**
+   * @return the time without changes after which the text is sent, 0 to send every change right away,
+   * -1 to send changes with the next request
+   */
+  public int getDebounce()
+  {
+    return debounce;
+  }
+
+  /**
+   * @return the maximum time after the first change until the text is sent, 0 for no limit
+   */
+  public int getMaxWait()
+  {
+    return maxWait;
+  }
+
+  public boolean isIdleFlush()
+  {
+    return idleFlush;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o)
+      return true;
+    if (!(o instanceof SyncPolicy))
+      return false;
+    SyncPolicy other = (SyncPolicy) o;
+    return debounce == other.debounce && maxWait == other.maxWait && idleFlush == other.idleFlush;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return (debounce * 31 + maxWait) * 31 + (idleFlush ? 1 : 0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SyncPolicy[debounce=" + debounce + ", maxWait=" + maxWait + ", idleFlush=" + idleFlush + "]";
+  }
+}
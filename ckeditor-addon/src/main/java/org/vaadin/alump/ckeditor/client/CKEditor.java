@@ -20,6 +20,8 @@
 package org.vaadin.alump.ckeditor.client;
 
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
+import com.google.gwt.dom.client.Element;
 
 /**
  * Wrapper around CKEDITOR.editor js object
@@ -61,8 +63,13 @@ public class CKEditor extends JavaScriptObject {
 	
 	public final native void setWriterRules(String tagName, String jsRule)
 	/*-{
-	 	var rule = @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(jsRule);
-		this.dataProcessor.writer.setRules(tagName, rule);
+	 	var rule = @org.vaadin.alump.ckeditor.client.CKEditorService::parseJson(Ljava/lang/String;)(jsRule);
+	 	// The writer keeps and extends the rules object, the parsed one is shared
+	 	var copy = {};
+	 	for (var key in rule) {
+	 		copy[key] = rule[key];
+	 	}
+		this.dataProcessor.writer.setRules(tagName, copy);
 	}-*/;
 	
 	public final native void setKeystroke(int keystroke, String command)
@@ -72,7 +79,7 @@ public class CKEditor extends JavaScriptObject {
 	
 	public final native void pushProtectedSource(String regexString)
 	/*-{
-	    var regex = @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(regexString);
+	    var regex = @org.vaadin.alump.ckeditor.client.CKEditorService::parseJson(Ljava/lang/String;)(regexString);
 		this.config.protectedSource.push( regex );
 	}-*/;
 	
@@ -81,50 +88,173 @@ public class CKEditor extends JavaScriptObject {
 		this.dataProcessor.writer.indentationChars = indentationChars;
 	}-*/;
 	
+	/**
+	 * Removes a regular expression added with {@link #pushProtectedSource(String)}. It is found by its source, the
+	 * parsed value may have been dropped from the cache and parsed again since.
+	 */
+	public final native void removeProtectedSource(String regexString)
+	/*-{
+	    var regex = String(@org.vaadin.alump.ckeditor.client.CKEditorService::parseJson(Ljava/lang/String;)(regexString));
+	    for (var i = 0; i < this.config.protectedSource.length; i++) {
+	    	if (String(this.config.protectedSource[i]) === regex) {
+	    		this.config.protectedSource.splice(i, 1);
+	    		return;
+	    	}
+	    }
+	}-*/;
+	
+	/**
+	 * Copies options of an in-page config to the config of the running editor. The contents CSS of the previous
+	 * config is replaced in the editor's list, files that plugins added with addContentsCss are kept.
+	 */
+	public final native void setConfigValues(JavaScriptObject previous, JavaScriptObject config, JsArrayString keys)
+	/*-{
+		for (var i = 0; i < keys.length; i++) {
+			if (keys[i] == 'contentsCss') {
+				var toList = function(css) {
+					return !css ? [] : (typeof css == 'string' ? [css] : css);
+				};
+				var defaultCss = $wnd.CKEDITOR.config.contentsCss;
+				var previousCss = toList(previous && previous.contentsCss ? previous.contentsCss : defaultCss);
+				var contentsCss = toList(config && config.contentsCss ? config.contentsCss : defaultCss).slice();
+				var current = toList(this.config.contentsCss);
+				for (var j = 0; j < current.length; j++) {
+					if (previousCss.indexOf(current[j]) < 0 && contentsCss.indexOf(current[j]) < 0) {
+						contentsCss.push(current[j]);
+					}
+				}
+				this.config.contentsCss = contentsCss;
+			} else if (config && Object.prototype.hasOwnProperty.call(config, keys[i])) {
+				this.config[keys[i]] = config[keys[i]];
+			} else {
+				delete this.config[keys[i]];
+			}
+		}
+	}-*/;
+	
+	/**
+	 * Connects the editor's events to the listener. The events are registered only once per editor and are
+	 * dispatched to the current listener, so a pooled editor can be handed over to another widget.
+	 */
 	public final native void instanceReady(CKEditorService.CKEditorListener listener)
 	/*-{
-	 	// The 'listener' passed to us is used as 'listenerData' for the callback.
+		this.vaadinListener = listener;
+		if (this.vaadinEventsWired) {
+			return;
+		}
+		this.vaadinEventsWired = true;
+		var editor = this;
+		
 	 	this.on( 'blur', function( ev ) {
- 			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onBlur()();
-    	}, null, listener);
+	 		if (editor.vaadinListener)
+ 				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onBlur()();
+    	});
     	
 	 	this.on( 'focus', function( ev ) {
- 			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onFocus()();
-    	}, null, listener);
+	 		if (editor.vaadinListener)
+ 				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onFocus()();
+    	});
     	
      	this.on( 'vaadinsave', function( ev ) {
-	 		ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSave()();
-    	}, null, listener);
+	 		if (editor.vaadinListener)
+	 			editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSave()();
+    	});
     	
     	// hook into the change events for ckEditor
 		this.on('change', function(ev) { 
-			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onChange()();
-		}, null, listener);
+	 		if (editor.vaadinListener)
+				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onChange()();
+		});
 
 		this.on('selectionChange', function(ev) { 
-			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSelectionChange()();
-		}, null, listener);
+	 		if (editor.vaadinListener)
+				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSelectionChange()();
+		});
 		this.on('contentDom', function(ev) {
-			this.document.on('keyup', function(ev2) {
-				ev2.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSelectionChange()();
-			}, null, ev.listenerData);
-			this.document.on('mouseup', function(ev2) {
-				ev2.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSelectionChange()();
-			}, null, ev.listenerData);
-		}, null, listener);
+			var onSelection = function(ev2) {
+		 		if (editor.vaadinListener)
+					editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onSelectionChange()();
+			};
+			// the editable, not the document: an inline editor shares the document with the page
+			this.editable().attachListener(this.editable(), 'keyup', onSelection);
+			this.editable().attachListener(this.editable(), 'mouseup', onSelection);
+		});
 		
 		this.on('mode', function(ev) { 
-			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onModeChange(Ljava/lang/String;)(ev.editor.mode);
-		}, null, listener);
+	 		if (editor.vaadinListener)
+				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onModeChange(Ljava/lang/String;)(ev.editor.mode);
+		});
 		this.on('dataReady', function(ev) { 
-			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onDataReady()();
-		}, null, listener);
+	 		if (editor.vaadinListener)
+				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onDataReady()();
+		});
 		this.on('resize', function(ev) {
-			ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onResize([Ljava/lang/Number;)([ev.data.outerHeight, ev.data.contentsHeight , ev.data.outerWidth]);
-		}, null, listener);
+	 		if (editor.vaadinListener)
+				editor.vaadinListener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onResize([Ljava/lang/Number;)([ev.data.outerHeight, ev.data.contentsHeight , ev.data.outerWidth]);
+		});
 
 	}-*/;
 	
+	/**
+	 * Prepares the editor to be kept off-DOM in the pool: disconnects the listener, switches to source mode,
+	 * which drops the wysiwyg iframe (an iframe would lose its document when moved), clears the data and
+	 * removes the editor from the document.
+	 * 
+	 * @return false if the editor can't be parked because it has no source mode, it must be destroyed then
+	 */
+	public final native boolean park()
+	/*-{
+		if (this.mode != 'source' && !this.commands.source) {
+			return false;
+		}
+		this.vaadinListener = null;
+		this.focusManager.blur(true);
+		if (this.mode != 'source') {
+			this.setMode('source');
+			if (this.mode != 'source') {
+				return false;
+			}
+		}
+		this.setData('');
+		var container = this.container.$;
+		if (container.parentNode) {
+			container.parentNode.removeChild(container);
+		}
+		return true;
+	}-*/;
+	
+	/**
+	 * Moves a parked editor into the given element and loads the data. The listener's onInstanceReady
+	 * is called once the editor is back in the requested mode, like for a newly created editor.
+	 */
+	public final void unpark(Element target, String htmlData, String mode, CKEditorService.CKEditorListener listener) {
+		moveTo(target, htmlData);
+		if ( ! mode.equals(getMode()) ) {
+			setMode(mode, listener);
+		} else {
+			// setMode neither switches nor calls back for the current mode, e.g. the source mode of a parked editor
+			listener.onInstanceReady();
+		}
+	}
+	
+	public final native String getMode()
+	/*-{
+		return this.mode;
+	}-*/;
+	
+	private native void moveTo(Element target, String htmlData)
+	/*-{
+		target.appendChild(this.container.$);
+		this.setData(htmlData);
+	}-*/;
+	
+	private native void setMode(String mode, CKEditorService.CKEditorListener listener)
+	/*-{
+		this.setMode(mode, function() {
+			listener.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onInstanceReady()();
+		});
+	}-*/;
+	
 	public final native void execCommand(String cmd)
 	/*-{
 		this.execCommand(cmd);
@@ -147,7 +277,10 @@ public class CKEditor extends JavaScriptObject {
 	
 	public final native void resize(int width, int height)
 	/*-{
-	 	this.resize(width, height);
+		// inline editors are sized by CSS
+		if (this.elementMode != $wnd.CKEDITOR.ELEMENT_MODE_INLINE) {
+	 		this.resize(width, height);
+	 	}
 	}-*/;
 	
 	public final native String getId()
@@ -182,10 +315,10 @@ public class CKEditor extends JavaScriptObject {
 	
 	public final native void protectBody(boolean protectBody)
 	/*-{
-	 	if (this.document) {
-	 		if (this.document.getBody()) {
-	 			this.document.getBody().$.contentEditable = !protectBody;
-	 		}
+		// the editable is the body of the iframe, or the element itself for an inline editor
+	 	var editable = this.editable();
+	 	if (editable && this.mode == 'wysiwyg') {
+	 		editable.$.contentEditable = !protectBody;
 	 	}
 	}-*/;
 
@@ -0,0 +1,54 @@
+package org.vaadin.alump.ckeditor.client;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.vaadin.client.ServerConnector;
+import com.vaadin.client.extensions.AbstractExtensionConnector;
+import com.vaadin.shared.ui.Connect;
+import org.vaadin.alump.ckeditor.CKEditorConfigRegistry;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigData;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigRpc;
+
+/**
+ * Receives the editor configurations of a UI, the fields only reference them by fingerprint.
+ */
+@Connect(CKEditorConfigRegistry.class)
+public class CKEditorConfigRegistryConnector extends AbstractExtensionConnector {
+
+	private final Set<String> registered = new HashSet<String>(); // configurations of this UI
+
+	@Override
+	protected void init() {
+		super.init();
+		registerRpc(CKEditorConfigRpc.class, new CKEditorConfigRpc() {
+			@Override
+			public void register(String fingerprint, CKEditorConfigData config) {
+				if ( registered.add(fingerprint) ) {
+					CKEditorService.registerConfig(fingerprint, config);
+				}
+			}
+
+			@Override
+			public void unregister(String fingerprint) {
+				if ( registered.remove(fingerprint) ) {
+					CKEditorService.releaseConfig(fingerprint);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onUnregister() {
+		super.onUnregister();
+		for ( String fingerprint : registered ) {
+			CKEditorService.releaseConfig(fingerprint);
+		}
+		registered.clear();
+	}
+
+	@Override
+	protected void extend(ServerConnector target) {
+	}
+
+}
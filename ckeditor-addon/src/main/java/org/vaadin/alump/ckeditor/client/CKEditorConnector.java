@@ -19,23 +19,129 @@
  */
 package org.vaadin.alump.ckeditor.client;
 
-import com.vaadin.client.ui.LegacyConnector;
-import com.vaadin.client.ui.SimpleManagedLayout;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.vaadin.client.ApplicationConnection;
+import com.vaadin.client.communication.StateChangeEvent;
+import com.vaadin.client.ui.AbstractFieldConnector;
+import com.vaadin.client.ui.layout.ElementResizeEvent;
+import com.vaadin.client.ui.layout.ElementResizeListener;
 import com.vaadin.shared.ui.Connect;
 import org.vaadin.alump.ckeditor.AbstractCKEditorTextField;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorClientRpc;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorServerRpc;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorState;
 
 @Connect(AbstractCKEditorTextField.class)
-public class CKEditorConnector extends LegacyConnector implements SimpleManagedLayout {
+public class CKEditorConnector extends AbstractFieldConnector {
+
+	private final ElementResizeListener resizeListener = new ElementResizeListener() {
+		@Override
+		public void onElementResize(ElementResizeEvent e) {
+			getWidget().doResize();
+		}
+	};
+
+	private HandlerRegistration requestStartingHandler;
+
+	@Override
+	protected void init() {
+		super.init();
+		getWidget().init(getConnectorId(), getConnection(), getRpcProxy(CKEditorServerRpc.class));
+		registerRpc(CKEditorClientRpc.class, new CKEditorClientRpc() {
+			@Override
+			public void setText(int version, String text, String patch) {
+				getWidget().setText(version, text, patch);
+			}
+
+			@Override
+			public void resendText() {
+				getWidget().resendText();
+			}
+
+			@Override
+			public void chunkAck(int transfer, int next) {
+				getWidget().onChunkAck(transfer, next);
+			}
+
+			@Override
+			public void insertHtml(String html) {
+				getWidget().insertHtml(html);
+			}
+
+			@Override
+			public void insertText(String text) {
+				getWidget().insertText(text);
+			}
+
+			@Override
+			public void focus() {
+				getWidget().setFocus(true);
+			}
+		});
+		// A request takes along the text the widget queued until then
+		requestStartingHandler = getConnection().addHandler(ApplicationConnection.RequestStartingEvent.TYPE,
+				new ApplicationConnection.CommunicationHandler() {
+					@Override
+					public void onRequestStarting(ApplicationConnection.RequestStartingEvent e) {
+						getWidget().onRequestStarting();
+					}
+
+					@Override
+					public void onResponseHandlingStarted(ApplicationConnection.ResponseHandlingStartedEvent e) {
+					}
+
+					@Override
+					public void onResponseHandlingEnded(ApplicationConnection.ResponseHandlingEndedEvent e) {
+					}
+				});
+		getLayoutManager().addElementResizeListener(getWidget().getElement(), resizeListener);
+	}
+
+	@Override
+	public void onStateChanged(StateChangeEvent stateChangeEvent) {
+		super.onStateChanged(stateChangeEvent);
+		CKEditorState state = getState();
+		VCKEditorTextField widget = getWidget();
+
+		// Only the properties that changed are passed on
+		if ( stateChangeEvent.hasPropertyChanged("syncDebounce") || stateChangeEvent.hasPropertyChanged("syncMaxWait")
+				|| stateChangeEvent.hasPropertyChanged("syncIdleFlush") ) {
+			widget.setSyncPolicy(state.syncDebounce, state.syncMaxWait, state.syncIdleFlush);
+		}
+		if ( stateChangeEvent.hasPropertyChanged("compressionThreshold") || stateChangeEvent.hasPropertyChanged("chunkSize") ) {
+			widget.setTextTransfer(state.compressionThreshold, state.chunkSize);
+		}
+		if ( stateChangeEvent.hasPropertyChanged("poolSize") && state.poolSize > 0 ) {
+			CKEditorService.setPoolSize(state.poolSize);
+		}
+		if ( stateChangeEvent.hasPropertyChanged("basePath") || stateChangeEvent.hasPropertyChanged("bundleUrl") ) {
+			widget.setLibrary(state.basePath != null ? getConnection().translateVaadinUri(state.basePath) : null,
+					state.bundleUrl != null ? getConnection().translateVaadinUri(state.bundleUrl) : null);
+		}
+		if ( stateChangeEvent.hasPropertyChanged("configId") ) {
+			widget.setConfigId(state.configId);
+		}
+		widget.setReadOnly(isReadOnly());
+		widget.setProtectedBody(state.protectedBody);
+		widget.setDisplayMode(state.viewWithoutEditor, state.lazyLoading, state.sharedEditor);
+		widget.updateEditor();
+	}
+
+	@Override
+	public void onUnregister() {
+		super.onUnregister();
+		requestStartingHandler.removeHandler();
+		getLayoutManager().removeElementResizeListener(getWidget().getElement(), resizeListener);
+	}
+
+	@Override
+	public VCKEditorTextField getWidget() {
+		return (VCKEditorTextField) super.getWidget();
+	}
 
 	@Override
-    public VCKEditorTextField getWidget() {
-        return (VCKEditorTextField) super.getWidget();
-    }
-
-    @Override
-    public void layout() {
-        // TODO Auto-generated method stub
-        
-    } 
+	public CKEditorState getState() {
+		return (CKEditorState) super.getState();
+	}
 
 }
@@ -0,0 +1,39 @@
+package org.vaadin.alump.ckeditor.client;
+
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.vaadin.client.ServerConnector;
+import com.vaadin.client.extensions.AbstractExtensionConnector;
+import com.vaadin.shared.ui.Connect;
+import org.vaadin.alump.ckeditor.CKEditorPreloader;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorPreloaderState;
+
+/**
+ * Loads the CKEditor library while the browser is idle, so the first editor doesn't have to wait for it.
+ */
+@Connect(CKEditorPreloader.class)
+public class CKEditorPreloaderConnector extends AbstractExtensionConnector {
+
+	private static final ScheduledCommand NOTHING = new ScheduledCommand() {
+		@Override
+		public void execute() {
+		}
+	};
+
+	@Override
+	protected void extend(ServerConnector target) {
+		CKEditorService.whenIdle(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				if ( getState().libraryUrl != null ) {
+					CKEditorService.loadLibrary(getConnection().translateVaadinUri(getState().libraryUrl), NOTHING, null);
+				}
+			}
+		});
+	}
+
+	@Override
+	public CKEditorPreloaderState getState() {
+		return (CKEditorPreloaderState) super.getState();
+	}
+
+}
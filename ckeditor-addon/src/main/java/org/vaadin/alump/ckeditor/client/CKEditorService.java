@@ -20,54 +20,255 @@
 package org.vaadin.alump.ckeditor.client;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.google.gwt.core.client.Callback;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
 import com.google.gwt.core.client.Scheduler;
-import com.google.gwt.core.client.Scheduler.RepeatingCommand;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
-import com.google.gwt.dom.client.Document;
-import com.google.gwt.dom.client.ScriptElement;
+import com.google.gwt.core.client.ScriptInjector;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.user.client.Timer;
+import com.vaadin.client.ResourceLoader;
+import com.vaadin.client.ResourceLoader.ResourceLoadEvent;
+import com.vaadin.client.ResourceLoader.ResourceLoadListener;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigData;
+import org.vaadin.alump.ckeditor.client.shared.TextCompression;
 
 /**
  * GWT wrapper for CKEDITOR for use by our Vaadin-based CKEditorService.
  */
 public class CKEditorService {
 	
-	private static boolean libraryLoadInited = false;
-	private static boolean libraryLoaded = false;
-	private static List<ScheduledCommand> afterLoadedStack = new ArrayList<ScheduledCommand>();
-	
-	public static synchronized void loadLibrary(ScheduledCommand afterLoad) {
-		if (! libraryLoadInited) {
-			libraryLoadInited = true;
-			if(!libraryReady()) {
-				String url = GWT.getModuleBaseURL() + "ckeditor/ckeditor.js";
-				ScriptElement se = Document.get().createScriptElement();
-				se.setSrc(url);
-				se.setType("text/javascript");
-				Document.get().getElementsByTagName("head").getItem(0).appendChild(se);
-			}
-			Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {				
+	/**
+	 * State of loading the CKEditor library.
+	 */
+	public enum LoadStatus {
+		NOT_LOADED, LOADING, LOADED, FAILED
+	}
+	
+	private static final int LOAD_TIMEOUT_MS = 15000;
+	private static final int RETRY_DELAY_MS = 500;
+	private static final int MAX_LOAD_ATTEMPTS = 3;
+	
+	private static LoadStatus loadStatus = LoadStatus.NOT_LOADED;
+	private static String libraryUrl;
+	private static int loadAttempt = 0;
+	private static boolean resourceLoaderUsed = false;
+	private static Timer loadTimeout;
+	private static List<PendingLoad> pendingLoads = new ArrayList<PendingLoad>();
+	
+	private static int poolSize = 0;
+	private static LinkedList<PooledEditor> pool = new LinkedList<PooledEditor>(); // least recently parked first
+	private static int poolHits = 0;
+	private static int poolMisses = 0;
+	
+	private static Map<String,CKEditor> sharedEditors = new HashMap<String,CKEditor>(); // parked shared editor per configuration
+	private static Map<String,SharedEditorOwner> sharedEditorOwners = new HashMap<String,SharedEditorOwner>();
+	private static Set<String> loadedScripts = new HashSet<String>();
+	private static Map<String,List<ScheduledCommand>> pendingScripts = new HashMap<String,List<ScheduledCommand>>();
+	
+	private static Map<String,CKEditorConfigData> configs = new HashMap<String,CKEditorConfigData>(); // by fingerprint
+	private static Map<String,JavaScriptObject> parsedConfigs = new HashMap<String,JavaScriptObject>();
+	private static Map<String,List<ScheduledCommand>> pendingConfigs = new HashMap<String,List<ScheduledCommand>>();
+	private static Map<String,Integer> configUsers = new HashMap<String,Integer>(); // number of registries per configuration
+	private static Map<String,JavaScriptObject> parsedJson = new HashMap<String,JavaScriptObject>(); // by the JSON string
+	
+	/**
+	 * Ensures the CKEditor library is loaded. Normally it already is, because ckeditor.js is loaded
+	 * as a dependency of the component, and afterLoad is executed right away. Otherwise the script is
+	 * loaded from the given URL through Vaadin's ResourceLoader, driven by its load and error events.
+	 * Using the published URL of the dependency, Vaadin won't load the file a second time. A load that doesn't finish within
+	 * the timeout or fails is retried a few times before giving up. ResourceLoader doesn't request a URL again while it
+	 * is still waiting for it, so retries inject the script themselves under a URL of their own. All commands waiting
+	 * for the library are executed in one batch once it is available.
+	 * 
+	 * @param url the URL of ckeditor.js, used if the library isn't available yet
+	 * @param afterLoad executed once the library is loaded
+	 * @param onFailure executed if the library could not be loaded, may be null. A later call starts a new attempt.
+	 */
+	public static void loadLibrary(String url, ScheduledCommand afterLoad, ScheduledCommand onFailure) {
+		if (loadStatus == LoadStatus.LOADED) {
+			afterLoad.execute();
+			return;
+		}
+		pendingLoads.add(new PendingLoad(afterLoad, onFailure));
+		if (loadStatus != LoadStatus.LOADING) {
+			libraryUrl = url;
+			loadAttempt = 0;
+			if (libraryReady()) {
+				libraryLoaded();
+			} else {
+				injectLibrary();
+			}
+		}
+	}
+	
+	/**
+	 * @return the state of loading the CKEditor library
+	 */
+	public static LoadStatus getLoadStatus() {
+		return loadStatus;
+	}
+	
+	private static void injectLibrary() {
+		loadStatus = LoadStatus.LOADING;
+		final int attempt = ++loadAttempt;
+		
+		loadTimeout = new Timer() {
+			@Override
+			public void run() {
+				libraryFailed(attempt);
+			}
+		};
+		loadTimeout.schedule(LOAD_TIMEOUT_MS);
+		
+		if (! resourceLoaderUsed) {
+			resourceLoaderUsed = true;
+			ResourceLoader.get().loadScript(libraryUrl, new ResourceLoadListener() {
 				@Override
-				public boolean execute() {
-					if (libraryReady()) {
-						reduceBlurDelay();
-						for (ScheduledCommand sc: afterLoadedStack) {
-							sc.execute();
-						}
-						libraryLoaded = true;
-						return false;
-					}
-					return true;
+				public void onLoad(ResourceLoadEvent event) {
+					libraryScriptLoaded(attempt);
 				}
-			}, 50);
+
+				@Override
+				public void onError(ResourceLoadEvent event) {
+					libraryFailed(attempt);
+				}
+			});
+			return;
 		}
-		if (libraryLoaded) {
-			afterLoad.execute();
+		
+		// ResourceLoader would only add a listener to its first, possibly still pending request
+		String url = libraryUrl + (libraryUrl.indexOf('?') < 0 ? "?" : "&") + "retry=" + attempt;
+		ScriptInjector.fromUrl(url).setWindow(ScriptInjector.TOP_WINDOW).setRemoveTag(false).setCallback(new Callback<Void, Exception>() {
+			@Override
+			public void onSuccess(Void result) {
+				libraryScriptLoaded(attempt);
+			}
+
+			@Override
+			public void onFailure(Exception reason) {
+				libraryFailed(attempt);
+			}
+		}).inject();
+	}
+	
+	private static void libraryScriptLoaded(int attempt) {
+		if (loadStatus != LoadStatus.LOADING) {
+			return;
+		}
+		// An earlier attempt that finished after its timeout still provides the library
+		if (libraryReady()) {
+			loadTimeout.cancel();
+			libraryLoaded();
+		} else {
+			libraryFailed(attempt);
+		}
+	}
+	
+	/**
+	 * Executes a command once the browser is idle, or after a short delay in browsers without requestIdleCallback.
+	 * 
+	 * @param command the command
+	 */
+	public static native void whenIdle(ScheduledCommand command)
+	/*-{
+		var run = $entry(function() {
+			command.@com.google.gwt.core.client.Scheduler.ScheduledCommand::execute()();
+		});
+		if ($wnd.requestIdleCallback) {
+			$wnd.requestIdleCallback(run, { timeout: 5000 });
 		} else {
-			afterLoadedStack.add(afterLoad);
+			$wnd.setTimeout(run, 1000);
+		}
+	}-*/;
+	
+	private static void libraryLoaded() {
+		loadStatus = LoadStatus.LOADED;
+		reduceBlurDelay();
+		List<PendingLoad> loads = pendingLoads;
+		pendingLoads = new ArrayList<PendingLoad>();
+		for (PendingLoad load: loads) {
+			load.afterLoad.execute();
+		}
+	}
+	
+	private static void libraryFailed(int attempt) {
+		if (attempt != loadAttempt || loadStatus != LoadStatus.LOADING) {
+			return; // outdated attempt, e.g. an error event after the timeout already triggered a retry
+		}
+		loadTimeout.cancel();
+		
+		if (loadAttempt < MAX_LOAD_ATTEMPTS) {
+			GWT.log("Loading CKEditor from " + libraryUrl + " failed, retrying");
+			new Timer() {
+				@Override
+				public void run() {
+					injectLibrary();
+				}
+			}.schedule(RETRY_DELAY_MS * loadAttempt);
+			return;
+		}
+		
+		GWT.log("Loading CKEditor from " + libraryUrl + " failed");
+		loadStatus = LoadStatus.FAILED;
+		List<PendingLoad> loads = pendingLoads;
+		pendingLoads = new ArrayList<PendingLoad>();
+		for (PendingLoad load: loads) {
+			if (load.onFailure != null) {
+				load.onFailure.execute();
+			}
+		}
+	}
+	
+	/**
+	 * Loads an additional script (e.g. the server generated bundle of plugins and dialogs) once per URL.
+	 * The command is executed after the script was loaded, and also if loading failed, because CKEditor
+	 * then simply loads the files itself.
+	 * 
+	 * @param url the URL of the script
+	 * @param afterLoad executed once the script was loaded or failed to load
+	 */
+	public static void loadScript(final String url, ScheduledCommand afterLoad) {
+		if (loadedScripts.contains(url)) {
+			afterLoad.execute();
+			return;
+		}
+		List<ScheduledCommand> pending = pendingScripts.get(url);
+		if (pending != null) {
+			pending.add(afterLoad);
+			return;
+		}
+		pending = new ArrayList<ScheduledCommand>();
+		pending.add(afterLoad);
+		pendingScripts.put(url, pending);
+		
+		ScriptInjector.fromUrl(url).setWindow(ScriptInjector.TOP_WINDOW).setCallback(new Callback<Void, Exception>() {
+			@Override
+			public void onSuccess(Void result) {
+				loadedScripts.add(url);
+				scriptDone(url);
+			}
+
+			@Override
+			public void onFailure(Exception reason) {
+				scriptDone(url);
+			}
+		}).inject();
+	}
+	
+	private static void scriptDone(String url) {
+		for (ScheduledCommand sc: pendingScripts.remove(url)) {
+			sc.execute();
 		}
 	}
 	
@@ -86,22 +287,25 @@ public class CKEditorService {
 	 * @param listener the CKEditorService.CKEditorListener will get notified when the editor instance is ready, changed, etc.
 	 * @param jsInPageConfig the String possible custom "in page" configuration; note that this must be an expected JSON for the CKEDITOR in page config. sent "as is" without any real syntax or security testing, so be sure you know it's valid and not malicious,such as: <code>{toolbar : 'Basic', language : 'en'}</code>
 	 */
-	public static native JavaScriptObject loadEditor(String id, CKEditorService.CKEditorListener listener, String jsInPageConfig, int compWidth, int compHeight,
+	public static JavaScriptObject loadEditor(String id, CKEditorService.CKEditorListener listener, String jsInPageConfig, int compWidth, int compHeight,
+																									 String startupMode) {
+		return loadEditor(id, listener, parseJson(jsInPageConfig), compWidth, compHeight, startupMode);
+	}
+	
+	/**
+	 * Same as {@link #loadEditor(String, CKEditorListener, String, int, int, String)} with a parsed "in page" configuration,
+	 * e.g. from {@link #getInPageConfig(String)}. The configuration itself is not changed.
+	 */
+	public static native JavaScriptObject loadEditor(String id, CKEditorService.CKEditorListener listener, JavaScriptObject config, int compWidth, int compHeight,
 																									 String startupMode)
 	/*-{
-	 	// Build our inPageConfig object based on the JSON jsInPageConfig sent to us.
-	 	var inPageConfig = @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(jsInPageConfig);
+	 	// The editor gets a copy, the parsed configuration is shared by all editors with the same configuration
+	 	var inPageConfig = @org.vaadin.alump.ckeditor.client.CKEditorService::copyConfig(Lcom/google/gwt/core/client/JavaScriptObject;)(config);
 	 	
 	 	var myEditor;
 	 	
-	 	if (inPageConfig == null) {
-	 		inPageConfig = new Object;
-	 		inPageConfig.width = compWidth;
-	 		inPageConfig.height = compHeight;
-	 	} else {
-	 		if (!inPageConfig.width) inPageConfig.width = compWidth;
-	 		if (!inPageConfig.height) inPageConfig.height = compHeight;
-		}
+	 	if (!inPageConfig.width) inPageConfig.width = compWidth;
+	 	if (!inPageConfig.height) inPageConfig.height = compHeight;
 
 		inPageConfig.startupMode = startupMode;
 
@@ -116,6 +320,367 @@ public class CKEditorService {
 
 	}-*/;
 	
+	private static native JavaScriptObject copyConfig(JavaScriptObject config)
+	/*-{
+		var copy = {};
+		if (config) {
+			for (var key in config) {
+				if (Object.prototype.hasOwnProperty.call(config, key)) {
+					copy[key] = config[key];
+				}
+			}
+		}
+		return copy;
+	}-*/;
+	
+	/**
+	 * Registers a configuration sent by the server. Widgets waiting for it continue.
+	 * 
+	 * @param fingerprint the fingerprint of the configuration
+	 * @param config the configuration, its in-page config possibly compressed
+	 */
+	public static void registerConfig(String fingerprint, CKEditorConfigData config) {
+		Integer users = configUsers.get(fingerprint);
+		configUsers.put(fingerprint, users == null ? 1 : users + 1);
+		if ( users != null && configs.containsKey(fingerprint) ) {
+			return; // same fingerprint, same content
+		}
+		config.inPageConfig = TextCompression.decode(config.inPageConfig);
+		configs.put(fingerprint, config);
+		parsedConfigs.remove(fingerprint);
+		List<ScheduledCommand> waiting = pendingConfigs.remove(fingerprint);
+		if ( waiting != null ) {
+			for ( ScheduledCommand command : waiting ) {
+				command.execute();
+			}
+		}
+	}
+	
+	/**
+	 * Releases a configuration registered with {@link #registerConfig(String, CKEditorConfigData)}. Once no registry
+	 * uses it anymore, it is removed with its parsed values and the editors kept for it. That happens deferred, so
+	 * widgets switching away from it in the same response still find it.
+	 * 
+	 * @param fingerprint the fingerprint of the configuration
+	 */
+	public static void releaseConfig(final String fingerprint) {
+		Integer users = configUsers.get(fingerprint);
+		if ( users == null ) {
+			return;
+		}
+		if ( users > 1 ) {
+			configUsers.put(fingerprint, users - 1);
+			return;
+		}
+		configUsers.remove(fingerprint);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				if ( ! configUsers.containsKey(fingerprint) ) {
+					removeConfig(fingerprint);
+				}
+			}
+		});
+	}
+	
+	private static void removeConfig(String fingerprint) {
+		configs.remove(fingerprint);
+		parsedConfigs.remove(fingerprint);
+		if ( ! sharedEditorOwners.containsKey(fingerprint) ) {
+			CKEditor shared = sharedEditors.remove(fingerprint);
+			if ( shared != null ) {
+				shared.destroy(true);
+			}
+		}
+		for ( Iterator<PooledEditor> it = pool.iterator(); it.hasNext(); ) {
+			PooledEditor pooled = it.next();
+			if ( pooled.key.equals(fingerprint) ) {
+				it.remove();
+				pooled.editor.destroy(true);
+			}
+		}
+		// Only the values of the remaining configurations are kept parsed
+		Set<String> used = new HashSet<String>();
+		for ( CKEditorConfigData config : configs.values() ) {
+			used.add(config.inPageConfig);
+			if ( config.writerRules != null ) {
+				used.addAll(config.writerRules.values());
+			}
+			if ( config.protectedSource != null ) {
+				used.addAll(config.protectedSource);
+			}
+		}
+		parsedJson.keySet().retainAll(used);
+	}
+	
+	/**
+	 * @param fingerprint the fingerprint of the configuration
+	 * @return the configuration, or null if it has not been registered yet
+	 */
+	public static CKEditorConfigData getConfig(String fingerprint) {
+		return configs.get(fingerprint);
+	}
+	
+	/**
+	 * Executes the command once the configuration is registered, right away if it already is
+	 */
+	public static void whenConfigRegistered(String fingerprint, ScheduledCommand command) {
+		if ( configs.containsKey(fingerprint) ) {
+			command.execute();
+			return;
+		}
+		List<ScheduledCommand> waiting = pendingConfigs.get(fingerprint);
+		if ( waiting == null ) {
+			waiting = new ArrayList<ScheduledCommand>();
+			pendingConfigs.put(fingerprint, waiting);
+		}
+		waiting.add(command);
+	}
+	
+	/**
+	 * The in-page config is only parsed once per configuration, all editors with the configuration share it.
+	 * 
+	 * @param fingerprint the fingerprint of the configuration
+	 * @return the parsed in-page config, or null if there is none
+	 */
+	public static JavaScriptObject getInPageConfig(String fingerprint) {
+		JavaScriptObject parsed = parsedConfigs.get(fingerprint);
+		if ( parsed == null ) {
+			CKEditorConfigData config = configs.get(fingerprint);
+			if ( config == null || config.inPageConfig == null ) {
+				return null;
+			}
+			parsed = parseJson(config.inPageConfig);
+			parsedConfigs.put(fingerprint, parsed);
+		}
+		return parsed;
+	}
+	
+	/**
+	 * @param fingerprint the fingerprint of a configuration, null for none
+	 * @param otherFingerprint the fingerprint of another configuration, null for none
+	 * @return the options of the in-page configs whose values differ
+	 */
+	public static JsArrayString getChangedOptions(String fingerprint, String otherFingerprint) {
+		return getChangedOptions(getInPageConfig(fingerprint), getInPageConfig(otherFingerprint));
+	}
+	
+	private static native JsArrayString getChangedOptions(JavaScriptObject config, JavaScriptObject other)
+	/*-{
+		// Functions and regular expressions are compared by their source
+		var toJson = function(value) {
+			return JSON.stringify(value, function(key, v) {
+				return typeof v === 'function' || v instanceof RegExp ? String(v) : v;
+			});
+		};
+		var changed = [];
+		var a = config || {};
+		var b = other || {};
+		for (var key in a) {
+			if (Object.prototype.hasOwnProperty.call(a, key) && toJson(a[key]) !== toJson(b[key])) {
+				changed.push(key);
+			}
+		}
+		for (var key in b) {
+			if (Object.prototype.hasOwnProperty.call(b, key) && !Object.prototype.hasOwnProperty.call(a, key)) {
+				changed.push(key);
+			}
+		}
+		return changed;
+	}-*/;
+	
+	/**
+	 * Sets the maximum number of detached editors kept for reuse. 0 disables the pool, editors are destroyed then.
+	 * 
+	 * @param size the maximum number of parked editors
+	 */
+	public static void setPoolSize(int size) {
+		poolSize = Math.max(0, size);
+		trimPool();
+	}
+	
+	/**
+	 * Keeps a detached editor for reuse by a widget with the same configuration.
+	 * 
+	 * @param key the configuration of the editor, editors are only reused for the same key
+	 * @param editor the editor, must be ready
+	 * @return false if the pool is disabled or the editor can't be parked, the caller must destroy it then
+	 */
+	public static boolean parkEditor(String key, CKEditor editor) {
+		if (poolSize == 0 || ! editor.park()) {
+			return false;
+		}
+		pool.addLast(new PooledEditor(key, editor));
+		trimPool();
+		return true;
+	}
+	
+	/**
+	 * Takes the most recently parked editor with the given configuration out of the pool.
+	 * 
+	 * @param key the configuration of the editor
+	 * @return the editor, to be used with {@link CKEditor#unpark}, or null if there is none
+	 */
+	public static CKEditor takeParkedEditor(String key) {
+		if (poolSize == 0) {
+			return null;
+		}
+		Iterator<PooledEditor> it = pool.descendingIterator();
+		while (it.hasNext()) {
+			PooledEditor pooled = it.next();
+			if (pooled.key.equals(key)) {
+				it.remove();
+				poolHits++;
+				return pooled.editor;
+			}
+		}
+		poolMisses++;
+		return null;
+	}
+	
+	/**
+	 * @return how often a parked editor was reused instead of creating a new one
+	 */
+	public static int getPoolHits() {
+		return poolHits;
+	}
+	
+	/**
+	 * @return how often a new editor had to be created although the pool is enabled
+	 */
+	public static int getPoolMisses() {
+		return poolMisses;
+	}
+	
+	/**
+	 * Makes the owner the user of the shared editor for a configuration. The previous user releases it,
+	 * which parks the editor so the new owner can take it with {@link #takeSharedEditor(String)}.
+	 * 
+	 * @param key the configuration of the editor
+	 * @param owner the widget that wants to use the shared editor
+	 */
+	public static void claimSharedEditor(String key, SharedEditorOwner owner) {
+		SharedEditorOwner previous = sharedEditorOwners.put(key, owner);
+		if (previous != null && previous != owner) {
+			previous.releaseSharedEditor();
+		}
+	}
+	
+	/**
+	 * Removes the owner as user of the shared editor, if it still is the user.
+	 */
+	public static void unclaimSharedEditor(String key, SharedEditorOwner owner) {
+		if (sharedEditorOwners.get(key) == owner) {
+			sharedEditorOwners.remove(key);
+		}
+	}
+	
+	/**
+	 * Keeps the shared editor of a configuration while no widget uses it. Unlike the pool this doesn't
+	 * depend on the pool size, there is only ever one shared editor per configuration.
+	 * 
+	 * @return false if there already is a shared editor or it can't be parked, the caller must destroy it then
+	 */
+	public static boolean parkSharedEditor(String key, CKEditor editor) {
+		if (sharedEditors.containsKey(key) || ! editor.park()) {
+			return false;
+		}
+		sharedEditors.put(key, editor);
+		return true;
+	}
+	
+	/**
+	 * @return the parked shared editor of a configuration, to be used with {@link CKEditor#unpark}, or null if there is none yet
+	 */
+	public static CKEditor takeSharedEditor(String key) {
+		return sharedEditors.remove(key);
+	}
+	
+	private static void trimPool() {
+		while (pool.size() > poolSize) {
+			pool.removeFirst().editor.destroy(true);
+		}
+	}
+	
+	/**
+	 * Creates an inline editor (CKEDITOR.inline) in a new element inside the given container. The editable element
+	 * fills the container, the editor has no iframe of its own and its toolbar floats above the element.
+	 * 
+	 * @param container the element of the widget, its current contents are replaced
+	 * @param listener the CKEditorService.CKEditorListener will get notified when the editor instance is ready, changed, etc.
+	 * @param jsInPageConfig the String possible custom "in page" configuration, see {@link #loadEditor}
+	 */
+	public static JavaScriptObject loadInlineEditor(Element container, CKEditorService.CKEditorListener listener, String jsInPageConfig) {
+		return loadInlineEditor(container, listener, parseJson(jsInPageConfig));
+	}
+	
+	/**
+	 * Same as {@link #loadInlineEditor(Element, CKEditorListener, String)} with a parsed "in page" configuration,
+	 * e.g. from {@link #getInPageConfig(String)}. The configuration itself is not changed.
+	 */
+	public static native JavaScriptObject loadInlineEditor(Element container, CKEditorService.CKEditorListener listener, JavaScriptObject config)
+	/*-{
+	 	var inPageConfig = @org.vaadin.alump.ckeditor.client.CKEditorService::copyConfig(Lcom/google/gwt/core/client/JavaScriptObject;)(config);
+	 	// width, height and resizing don't apply, the element is sized by CSS
+	 	delete inPageConfig.width;
+	 	delete inPageConfig.height;
+	 	inPageConfig.resize_enabled = false;
+	 	
+	 	container.innerHTML = '';
+	 	var editable = $doc.createElement('div');
+	 	editable.className = 'v-ckeditortextfield-inline';
+	 	editable.setAttribute('contenteditable', 'true');
+	 	container.appendChild(editable);
+	 	
+	 	var myEditor = $wnd.CKEDITOR.inline( editable, inPageConfig );
+	 	
+		myEditor.on( 'instanceReady', function( ev ) {
+    		ev.listenerData.@org.vaadin.alump.ckeditor.client.CKEditorService.CKEditorListener::onInstanceReady()();
+		}, null, listener);
+		
+		return myEditor;
+	}-*/;
+	
+	/**
+	 * Points CKEDITOR to another location for all files it loads lazily (plugins, languages, skins).
+	 * Must be called before the first editor instance is created to affect the plugin paths.
+	 * 
+	 * @param basePath the URL of the editor folder, ending with a slash
+	 */
+	public native static void setBasePath(String basePath)
+	/*-{
+		$wnd.CKEDITOR.basePath = basePath;
+	}-*/;
+	
+	/**
+	 * Removes scripts, embedded content, event handler attributes and javascript: URLs from HTML, so it can be
+	 * shown outside of the editor. The HTML is parsed in an inert document, nothing in it is loaded or executed.
+	 * 
+	 * @param html the HTML
+	 * @return the sanitized HTML
+	 */
+	public native static String sanitizeHtml(String html)
+	/*-{
+		var body = $doc.implementation.createHTMLDocument('').body;
+		body.innerHTML = html;
+		var unsafe = body.querySelectorAll('script,style,link,meta,base,iframe,frame,object,embed,applet,form');
+		for (var i = 0; i < unsafe.length; i++) {
+			unsafe[i].parentNode.removeChild(unsafe[i]);
+		}
+		var elements = body.getElementsByTagName('*');
+		for (var i = 0; i < elements.length; i++) {
+			var attributes = elements[i].attributes;
+			for (var j = attributes.length - 1; j >= 0; j--) {
+				var name = attributes[j].name.toLowerCase();
+				var value = attributes[j].value.replace(/[\s\u0000-\u001f]/g, '').toLowerCase();
+				if (name.indexOf('on') == 0 || value.indexOf('javascript:') == 0 || value.indexOf('vbscript:') == 0) {
+					elements[i].removeAttribute(attributes[j].name);
+				}
+			}
+		}
+		return body.innerHTML;
+	}-*/;
+	
 	public native static String version()
 	/*-{
 		return $wnd.CKEDITOR.version;
@@ -146,17 +711,75 @@ public class CKEditorService {
 	// TODO: Never tested yet
 	public native static void addStylesSet(String name, String jsStyles)
 	/*-{
-	 	var styles = @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(jsStyles);
+	 	var styles = @org.vaadin.alump.ckeditor.client.CKEditorService::parseJson(Ljava/lang/String;)(jsStyles);
 		$wnd.CKEDITOR.addStylesSet(name,styles);
 	}-*/;
 	
 	// TODO: Never tested yet
 	public native static void addTemplates(String name, String jsDefinition)
 	/*-{
-	 	var definition = @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(jsDefinition);
+	 	var definition = @org.vaadin.alump.ckeditor.client.CKEditorService::parseJson(Ljava/lang/String;)(jsDefinition);
 		$wnd.CKEDITOR.addTemplates(name,definition);
 	}-*/;
 
+	/**
+	 * Parses a value sent by the server as JSON, see {@link CKEditorConfigData}: <code>{"$regex": source, "flags": flags}</code>
+	 * becomes a RegExp and only <code>{"$js": source}</code>, e.g. a function, is evaluated. Each string is parsed once,
+	 * the parsed value is shared and must not be changed.
+	 * Values that are not JSON are evaluated with {@link #convertJavaScriptStringToObject(String)}.
+	 * 
+	 * @param json the JSON string
+	 * @return the parsed value, or null for null
+	 */
+	public static JavaScriptObject parseJson(String json) {
+		if ( json == null ) {
+			return null;
+		}
+		JavaScriptObject parsed = parsedJson.get(json);
+		if ( parsed == null ) {
+			parsed = parse(json);
+			parsedJson.put(json, parsed);
+		}
+		return parsed;
+	}
+	
+	private native static JavaScriptObject parse(String json)
+	/*-{
+		var parsed;
+		try {
+			parsed = JSON.parse(json);
+		} catch (e) {
+			return @org.vaadin.alump.ckeditor.client.CKEditorService::convertJavaScriptStringToObject(Ljava/lang/String;)(json);
+		}
+		var revive = function(value) {
+			if ( value === null || typeof value !== 'object' ) {
+				return value;
+			}
+			if ( typeof value.$regex === 'string' ) {
+				return new RegExp(value.$regex, value.flags || '');
+			}
+			if ( typeof value.$js === 'string' ) {
+				try {
+					return eval('('+value.$js+')');
+				} catch (e) {
+					alert('parseJson() INVALID JAVASCRIPT: ' + value.$js);
+					return null;
+				}
+			}
+			for (var key in value) {
+				if (Object.prototype.hasOwnProperty.call(value, key)) {
+					value[key] = revive(value[key]);
+				}
+			}
+			return value;
+		};
+		return revive(parsed);
+	}-*/;
+	
+	/**
+	 * Evaluates JavaScript, only used for values that are not JSON.
+	 * @see #parseJson(String)
+	 */
 	public native static JavaScriptObject convertJavaScriptStringToObject(String jsString)
 	/*-{
 	    try {
@@ -168,6 +791,40 @@ public class CKEditorService {
 	}-*/;
 
 
+	/**
+	 * A detached editor with the configuration it was created for.
+	 */
+	private static class PooledEditor {
+		private final String key;
+		private final CKEditor editor;
+		
+		private PooledEditor(String key, CKEditor editor) {
+			this.key = key;
+			this.editor = editor;
+		}
+	}
+	
+	/**
+	 * Commands waiting for the library.
+	 */
+	private static class PendingLoad {
+		private final ScheduledCommand afterLoad;
+		private final ScheduledCommand onFailure;
+		
+		private PendingLoad(ScheduledCommand afterLoad, ScheduledCommand onFailure) {
+			this.afterLoad = afterLoad;
+			this.onFailure = onFailure;
+		}
+	}
+
+	/**
+	 * A widget that can use the shared editor.
+	 */
+	public interface SharedEditorOwner {
+		/** Called when another widget claims the shared editor. Must write back the data and unload the editor. */
+		void releaseSharedEditor();
+	}
+
 	/**
 	 * An interface for the VCKEditorTextField to get events from the CKEditor.
 	 */
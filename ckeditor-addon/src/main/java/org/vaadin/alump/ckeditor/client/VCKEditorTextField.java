@@ -21,51 +21,42 @@ package org.vaadin.alump.ckeditor.client;
 
 import java.util.*;
 
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
 import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.dom.client.DivElement;
 import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.Style.Overflow;
 import com.google.gwt.dom.client.Style.Visibility;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Focusable;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.ApplicationConnection;
-import com.vaadin.client.LayoutManager;
-import com.vaadin.client.Paintable;
-import com.vaadin.client.UIDL;
-import com.vaadin.client.ui.layout.ElementResizeEvent;
-import com.vaadin.client.ui.layout.ElementResizeListener;
+import com.vaadin.shared.ApplicationConstants;
 import com.vaadin.shared.EventId;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorConfigData;
+import org.vaadin.alump.ckeditor.client.shared.CKEditorServerRpc;
+import org.vaadin.alump.ckeditor.client.shared.TextChunk;
+import org.vaadin.alump.ckeditor.client.shared.TextCompression;
+import org.vaadin.alump.ckeditor.client.shared.TextPatch;
 
 /**
  * Client side CKEditor widget which communicates with the server. Messages from the
  * server are shown as HTML and mouse clicks are sent to the server.
  */
-public class VCKEditorTextField extends Widget implements Paintable, CKEditorService.CKEditorListener, Focusable {
+public class VCKEditorTextField extends Widget implements CKEditorService.CKEditorListener, CKEditorService.SharedEditorOwner, Focusable {
 	
 	/** Set the CSS class name to allow styling. */
 	public static final String CLASSNAME = "v-ckeditortextfield";
 	
-	public static final String ATTR_FOCUS = "focus";
-	public static final String ATTR_IMMEDIATE = "immediate";
-	public static final String ATTR_READONLY = "readonly";
-	public static final String ATTR_VIEW_WITHOUT_EDITOR = "viewWithoutEditor";
-	public static final String ATTR_INPAGECONFIG = "inPageConfig";
-	public static final String ATTR_PROTECTED_SOURCE = "protectedSource";
-	public static final String ATTR_WRITERRULES_TAGNAME = "writerRules.tagName";
-	public static final String ATTR_WRITERRULES_JSRULE = "writerRules.jsRule";
-	public static final String ATTR_WRITER_INDENTATIONCHARS = "writerIndentationChars";
-	public static final String ATTR_KEYSTROKES_KEYSTROKE = "keystrokes.keystroke";
-	public static final String ATTR_KEYSTROKES_COMMAND = "keystrokes.command";
-	public static final String ATTR_INSERT_HTML = "insert_html";
-	public static final String ATTR_INSERT_TEXT = "insert_text";
-	public static final String ATTR_PROTECTED_BODY = "protected_body";
-	public static final String VAR_TEXT = "text";
-	public static final String VAR_VAADIN_SAVE_BUTTON_PRESSED = "vaadinsave";
-	public static final String VAR_VERSION = "version";
-	
 	public static final String EVENT_SELECTION_CHANGE = "selectionChange";
 	
+	/** in-page config options that are changed on the running editor, the read-only mode is set by the field */
+	private static final Set<String> LIVE_OPTIONS = new HashSet<String>(Arrays.asList("contentsCss", "bodyClass", "readOnly"));
+	
 	private static String ckeditorVersion;
 
 	/** The client side widget identifier */
@@ -73,27 +64,49 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 
 	/** Reference to the server connection object. */
 	protected ApplicationConnection clientToServer;
+	
+	private CKEditorServerRpc serverRpc;
 
-	private String inPageConfig = null;
+	private String configId = null; // fingerprint of the configuration, see CKEditorService.registerConfig()
+	private CKEditorConfigData config = null; // null until the configuration is registered
+	private String basePath = null;
+	private String bundleUrl = null;
+	private int compressionThreshold = 0; // minimum length of texts sent compressed, 0 to never compress
+	private int chunkSize = 0; // maximum length of a text sent in one request, 0 for no limit
+	private int transferCount = 0;
+	private String transferName = null; // the variable of a text that is being sent in chunks
+	private String transferText = null;
+	private int transferVersion;
+	private boolean transferRestarted = false; // a rejected transfer was started again, it is not restarted a second time
+	private String dataAfterTransfer = null; // changes made while a transfer is running
 	private String dataBeforeEdit = null;
+	private int textVersion = -1; // version of the last text received from the server, sent back with our changes
+	private boolean textQueued = false; // a delayed text call is queued and not yet sent, see sendData()
+	private String queuedBase = null; // the text the server had before the queued call
 	private boolean ignoreDataChangesUntilReady = false;
 	
-	private boolean immediate;
+	private int syncDebounce = -1; // ms without changes until they are sent, 0 to send every change, -1 to send with the next request
+	private int syncMaxWait; // ms after the first unsent change until it is sent at the latest, 0 for no limit
+	private boolean syncIdleFlush; // sends when the browser is idle once a delay ended
+	private boolean syncPending; // a change waits for the sync timers
+	private boolean syncIdleScheduled; // a flush waits for the browser to be idle
+	private Timer syncDebounceTimer;
+	private Timer syncMaxWaitTimer;
 	private boolean readOnly;
 	private boolean viewWithoutEditor; // Set to true and the editor will not be displayed, just the contents.
+	private boolean lazyLoading; // Set to true and the editor is created once it becomes visible, gets focus or is clicked.
+	private boolean sharedEditor; // Set to true and the field only shows its contents until activated, then it borrows the shared editor.
+	private boolean lazyActivated;
+	private JavaScriptObject lazyActivation;
 	private boolean protectedBody;
 	
 	private CKEditor ckEditor = null;
+	private String poolKey = null; // configuration the editor was created with, see CKEditorService.parkEditor()
+	private boolean reusingParkedEditor = false;
 	private boolean ckEditorIsBeingLoaded = false;
 	private boolean ckEditorIsReady = false;
-	private boolean resizeListenerInPlace = false;
 	private boolean notifyBlankSelection = false;
 	
-	private LinkedList<String> protectedSourceList = null;
-	private HashMap<String,String> writerRules = null;
-	private String writerIndentationChars = null;
-	private HashMap<Integer,String> keystrokeMappings = null;
-	
 	private int tabIndex;
 	private boolean setFocusAfterReady;
 	private boolean setTabIndexAfterReady;
@@ -120,174 +133,271 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	}
 	
 	/**
-	 * Called whenever an update is received from the server
+	 * Called by the connector once it is created
+	 * 
+	 * @param connectorId the connector id, used as element id for the editor
+	 * @param client the connection
+	 * @param rpc sends the changes to the server
 	 */
-	@Override
-	public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+	void init(String connectorId, ApplicationConnection client, CKEditorServerRpc rpc) {
+		paintableId = connectorId;
 		clientToServer = client;
-		paintableId = uidl.getId();
-		boolean needsDataUpdate = false;
-		boolean needsProtectedBodyUpdate = false;
-		boolean readOnlyModeChanged = false;
-		
-		// This call should be made first.
-		// It handles sizes, captions, tooltips, etc. automatically.
-		// If clientToServer.updateComponent returns true there have been no changes
-		// and we do not need to update anything.
-		if ( clientToServer.updateComponent(this, uidl, true) ) {
-			return;
-		}
-			
-		if ( ! resizeListenerInPlace ) {
-			LayoutManager.get(client).addElementResizeListener(getElement(), new ElementResizeListener() {
-
+		serverRpc = rpc;
+	}
+	
+	void setSyncPolicy(int debounce, int maxWait, boolean idleFlush) {
+		syncDebounce = debounce;
+		syncMaxWait = maxWait;
+		syncIdleFlush = idleFlush;
+	}
+	
+	void setTextTransfer(int compressionThreshold, int chunkSize) {
+		this.compressionThreshold = compressionThreshold;
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * @param basePath the translated base path of the editor files, null if they are published as dependencies
+	 * @param bundleUrl the translated URL of the script bundle, null for none
+	 */
+	void setLibrary(String basePath, String bundleUrl) {
+		this.basePath = basePath;
+		this.bundleUrl = bundleUrl;
+	}
+	
+	/**
+	 * Sets the configuration the next editor is created with, and applies it to the current editor, see
+	 * {@link #applyConfig()}. Until it is registered, no editor is loaded.
+	 * 
+	 * @param configId the fingerprint of the configuration
+	 */
+	void setConfigId(final String configId) {
+		this.configId = configId;
+		config = configId != null ? CKEditorService.getConfig(configId) : null;
+		if ( configId != null && config == null ) {
+			// the registry sends it in the same response, but its call may come after our state
+			CKEditorService.whenConfigRegistered(configId, new ScheduledCommand() {
 				@Override
-				public void onElementResize(ElementResizeEvent e) {
-					doResize();
+				public void execute() {
+					if ( configId.equals(VCKEditorTextField.this.configId) ) {
+						config = CKEditorService.getConfig(configId);
+						applyConfig();
+						updateEditor();
+					}
 				}
-
 			});
-			resizeListenerInPlace = true;
+		} else {
+			applyConfig();
 		}
-		
-		if ( uidl.hasAttribute(ATTR_IMMEDIATE) ) {
-	 		immediate = uidl.getBooleanAttribute(ATTR_IMMEDIATE);
+	}
+	
+	/**
+	 * Applies a changed configuration to the current editor. Writer rules, keystrokes, protected source, contents CSS,
+	 * body class and read-only are changed on the running editor, any other change needs a new editor, which
+	 * {@link #updateEditor()} then loads. The server is told which of the two happened.
+	 */
+	private void applyConfig() {
+		if ( ckEditor == null || config == null || configId.equals(poolKey) ) {
+			return;
 		}
-		if ( uidl.hasAttribute(ATTR_READONLY) ) {
-			boolean newReadOnly = uidl.getBooleanAttribute(ATTR_READONLY);
-			readOnlyModeChanged = newReadOnly != readOnly;
-			readOnly = newReadOnly;
+		CKEditorConfigData previous = CKEditorService.getConfig(poolKey);
+		// Changes of the user go to the server first, the editor contents are set again or the editor is replaced
+		if ( ckEditorIsReady && ! readOnly && ! ignoreDataChangesUntilReady ) {
+			cancelSync();
+			String data = ckEditor.getData();
+			if ( ! data.equals(dataBeforeEdit) ) {
+				sendData(data, true);
+			}
+		}
+		JsArrayString changedOptions = CKEditorService.getChangedOptions(poolKey, configId);
+		boolean live = ckEditorIsReady && ! sharedEditor && previous != null && previous.inline == config.inline;
+		for ( int i = 0; live && i < changedOptions.length(); ++i ) {
+			live = LIVE_OPTIONS.contains(changedOptions.get(i));
+		}
+		// The writer and the keystroke handler start with defaults that a changed or removed entry has overwritten
+		live = live && ! isRemovedOrChanged(previous.writerRules, config.writerRules) && ! isRemovedOrChanged(previous.keystrokes, config.keystrokes);
+		if ( live ) {
+			updateEditorConfig(previous, changedOptions);
+			poolKey = configId; // the editor now has everything of the configuration
+		} else {
+			unloadEditor();
+			if ( sharedEditor ) {
+				lazyActivated = false; // the shared editor of the new configuration is claimed on activation
+			}
+		}
+		serverRpc.configUpdated(configId, ! live);
+	}
+	
+	/**
+	 * @return true if an entry of the previous map is missing or different in the new one
+	 */
+	private static <K> boolean isRemovedOrChanged(Map<K,String> previous, Map<K,String> current) {
+		if ( previous == null ) {
+			return false;
 		}
-		if ( uidl.hasAttribute(ATTR_VIEW_WITHOUT_EDITOR) ) {
-			viewWithoutEditor = uidl.getBooleanAttribute(ATTR_VIEW_WITHOUT_EDITOR);
+		for ( K key : previous.keySet() ) {
+			if ( current == null || ! previous.get(key).equals(current.get(key)) ) {
+				return true;
+			}
 		}
-		if ( uidl.hasAttribute(ATTR_PROTECTED_BODY) ) {
-			boolean state = uidl.getBooleanAttribute(ATTR_PROTECTED_BODY);
-			if (protectedBody != state) {
-				protectedBody = state ;
-				needsProtectedBodyUpdate = true;
+		return false;
+	}
+	
+	private void updateEditorConfig(CKEditorConfigData previous, JsArrayString changedOptions) {
+		Map<String,String> previousRules = previous.writerRules != null ? previous.writerRules : Collections.<String,String>emptyMap();
+		Map<String,String> rules = config.writerRules != null ? config.writerRules : Collections.<String,String>emptyMap();
+		for ( String tagName : rules.keySet() ) {
+			if ( ! previousRules.containsKey(tagName) ) {
+				ckEditor.setWriterRules(tagName, rules.get(tagName));
 			}
 		}
-		if ( uidl.hasVariable(VAR_TEXT) ) {
-			String data = uidl.getStringVariable(VAR_TEXT);
-			if ( ckEditor != null )
-				dataBeforeEdit = ckEditor.getData();
-			needsDataUpdate = ! data.equals(dataBeforeEdit);
-			dataBeforeEdit = data;
+		
+		if ( ! Objects.equals(previous.writerIndentationChars, config.writerIndentationChars) ) {
+			ckEditor.setWriterIndentationChars(config.writerIndentationChars != null ? config.writerIndentationChars : "\t");
+		}
+		
+		Map<Integer,String> previousKeystrokes = previous.keystrokes != null ? previous.keystrokes : Collections.<Integer,String>emptyMap();
+		Map<Integer,String> keystrokes = config.keystrokes != null ? config.keystrokes : Collections.<Integer,String>emptyMap();
+		for ( Integer keystroke : keystrokes.keySet() ) {
+			if ( ! previousKeystrokes.containsKey(keystroke) ) {
+				ckEditor.setKeystroke(keystroke, keystrokes.get(keystroke));
+			}
 		}
 		
-		// Save the client side identifier (paintable id) for the widget
-		if ( ! paintableId.equals(getElement().getId()) ) {
-			getElement().setId(paintableId);
+		if ( ! Objects.equals(previous.protectedSource, config.protectedSource) ) {
+			if ( previous.protectedSource != null ) {
+				for ( String regex : previous.protectedSource ) {
+					ckEditor.removeProtectedSource(regex);
+				}
+			}
+			if ( config.protectedSource != null ) {
+				for ( String regex : config.protectedSource ) {
+					ckEditor.pushProtectedSource(regex);
+				}
+			}
 		}
 		
+		if ( changedOptions.length() > 0 ) {
+			ckEditor.setConfigValues(CKEditorService.getInPageConfig(poolKey), CKEditorService.getInPageConfig(configId), changedOptions);
+			// The contents CSS and body class are applied when the contents document is written
+			boolean rewriteContents = false;
+			for ( int i = 0; i < changedOptions.length(); ++i ) {
+				String option = changedOptions.get(i);
+				rewriteContents |= "contentsCss".equals(option) || "bodyClass".equals(option);
+			}
+			if ( rewriteContents && ! config.inline ) {
+				setEditorData(ckEditor.getData());
+			}
+		}
+	}
+	
+	void setDisplayMode(boolean viewWithoutEditor, boolean lazyLoading, boolean sharedEditor) {
+		this.viewWithoutEditor = viewWithoutEditor;
+		this.lazyLoading = lazyLoading;
+		this.sharedEditor = sharedEditor;
+	}
+	
+	void setReadOnly(boolean readOnly) {
+		boolean readOnlyModeChanged = readOnly != this.readOnly;
+		this.readOnly = readOnly;
+		if ( readOnlyModeChanged && ckEditorIsReady ) {
+			ckEditor.setReadOnly(readOnly);
+		}
+	}
+	
+	void setProtectedBody(boolean protectedBody) {
+		boolean protectedBodyChanged = protectedBody != this.protectedBody;
+		this.protectedBody = protectedBody;
+		if ( protectedBodyChanged && ckEditorIsReady ) {
+			ckEditor.protectBody(protectedBody);
+		}
+	}
+	
+	/**
+	 * Shows the contents instead of the editor, or loads the editor if there is none yet
+	 */
+	void updateEditor() {
 		if ( viewWithoutEditor ) {
 			if ( ckEditor != null ) {
-				// may update the data and change to viewWithoutEditor at the same time 
-				if ( ! needsDataUpdate ) {
+				// keeps changes the user made, but not the text of the editor while new data is being set
+				if ( ckEditorIsReady && ! ignoreDataChangesUntilReady ) {
 					dataBeforeEdit = ckEditor.getData();
 				}
 				unloadEditor();
 			}
+			stopLazyActivation();
 			getElement().setInnerHTML(dataBeforeEdit);
 		}
 		else if ( ckEditor == null ) {
 			getElement().setInnerHTML(""); // in case we put contents in there while in viewWithoutEditor mode
-
-			// If we have the config, use it, otherwise attempt to use any prior config we have
-			if ( uidl.hasAttribute(ATTR_INPAGECONFIG) )
-				inPageConfig = uidl.getStringAttribute(ATTR_INPAGECONFIG);
-
-			if ( uidl.hasAttribute(ATTR_WRITER_INDENTATIONCHARS) )
-				writerIndentationChars = uidl.getStringAttribute(ATTR_WRITER_INDENTATIONCHARS);
-			
-			if ( uidl.hasAttribute(ATTR_FOCUS) ) {
-				setFocus(uidl.getBooleanAttribute(ATTR_FOCUS));
-			}
-			
-			// See if we have any writer rules
-			int i = 0;
-			while( true ) {
-				if ( ! uidl.hasAttribute(ATTR_WRITERRULES_TAGNAME+i)  ) {
-					break;
-				}
-				if ( i == 0 && writerRules != null )
-					writerRules.clear();
-				// Save the rules until our instance is ready
-				String tagName = uidl.getStringAttribute(ATTR_WRITERRULES_TAGNAME+i);
-				String jsRule  = uidl.getStringAttribute(ATTR_WRITERRULES_JSRULE+i);
-				if ( writerRules == null ) {
-					writerRules = new HashMap<String,String>();
-				}
-				writerRules.put(tagName, jsRule);
-				++i;
-			}
-			
-			// See if we have any keystrokes
-			i = 0;
-			while( true ) {
-				if ( ! uidl.hasAttribute(ATTR_KEYSTROKES_KEYSTROKE+i)  ) {
-					break;
-				}
-				if ( i == 0 && keystrokeMappings != null )
-					keystrokeMappings.clear();
-				// Save the keystrokes until our instance is ready
-				int keystroke = uidl.getIntAttribute(ATTR_KEYSTROKES_KEYSTROKE+i);
-				String command  = uidl.getStringAttribute(ATTR_KEYSTROKES_COMMAND+i);
-				if ( keystrokeMappings == null ) {
-					keystrokeMappings = new HashMap<Integer,String>();
-				}
-				keystrokeMappings.put(keystroke, command);
-				++i;
-			}
-			
-			// See if we have any protected source regexs
-			i = 0;
-			while( true ) {
-				if ( ! uidl.hasAttribute(ATTR_PROTECTED_SOURCE+i)  ) {
-					break;
-				}
-				if ( i == 0 && protectedSourceList != null )
-					protectedSourceList.clear();
-				// Save the regex until our instance is ready
-				String regex = uidl.getStringAttribute(ATTR_PROTECTED_SOURCE+i);
-				if ( protectedSourceList == null ) {
-					protectedSourceList = new LinkedList<String>();
-				}
-				protectedSourceList.add(regex);
-				++i;
-			}
-			
-			loadEditor();
+			loadEditorOrPlaceholder();
 			
 			// editor data and some options are set when the instance is ready....
-		} else if ( ckEditorIsReady ) {
-			if ( needsDataUpdate ) {
-				setEditorData(dataBeforeEdit);
-			}
-			
-			if ( needsProtectedBodyUpdate ) {
-				ckEditor.protectBody(protectedBody);
-			}
-			
-			if (uidl.hasAttribute(ATTR_INSERT_HTML)) {
-				ckEditor.insertHtml(uidl.getStringAttribute(ATTR_INSERT_HTML));
-			}
-			
-			if (uidl.hasAttribute(ATTR_INSERT_TEXT)) {
-				ckEditor.insertText(uidl.getStringAttribute(ATTR_INSERT_TEXT));
-			}
-
-			if ( uidl.hasAttribute(ATTR_FOCUS) ) {
-				setFocus(uidl.getBooleanAttribute(ATTR_FOCUS));
-			}
-			
-			if ( readOnlyModeChanged ) {
-				ckEditor.setReadOnly(readOnly);
-			}			
 		}
 	}
 	
+	/**
+	 * Sets a text received from the server
+	 * 
+	 * @see org.vaadin.alump.ckeditor.client.shared.CKEditorClientRpc#setText(int, String, String)
+	 */
+	void setText(int version, String text, String patch) {
+		String data;
+		if ( text != null ) {
+			data = TextCompression.decode(text);
+		} else {
+			// The patch is made for the text we last sent or received
+			data = TextPatch.apply(dataBeforeEdit, TextCompression.decode(patch));
+		}
+		if ( data == null ) {
+			serverRpc.requestText();
+			return;
+		}
+		textVersion = version;
+		if ( ckEditor != null )
+			dataBeforeEdit = ckEditor.getData();
+		// Only calls setData when the editor does not already show the text, e.g. for our own change sent back
+		boolean needsDataUpdate = ! data.equals(dataBeforeEdit);
+		dataBeforeEdit = data;
+		if ( ckEditor == null ) {
+			updateEditor(); // shows the new contents if there is no editor
+		} else if ( ckEditorIsReady && needsDataUpdate ) {
+			setEditorData(dataBeforeEdit);
+		}
+	}
+	
+	/**
+	 * The server could not apply our last patch, its text is older than ours
+	 */
+	void resendText() {
+		String data = ckEditorIsReady ? ckEditor.getData() : dataBeforeEdit;
+		if ( data != null ) {
+			dataBeforeEdit = null; // sends the full text
+			sendData(data, true);
+		}
+	}
+	
+	void insertHtml(String html) {
+		html = TextCompression.decode(html);
+		if ( ckEditorIsReady && html != null ) {
+			ckEditor.insertHtml(html);
+		}
+	}
+	
+	void insertText(String text) {
+		if ( ckEditorIsReady ) {
+			ckEditor.insertText(text);
+		}
+	}
+	
+	/**
+	 * Called when a request to the server starts, it takes along a queued text
+	 */
+	void onRequestStarting() {
+		textQueued = false;
+		queuedBase = null;
+	}
+	
 	void setEditorData(String html) {
 		if ( ckEditorIsReady ) {
 			dataBeforeEdit = html;
@@ -298,10 +408,22 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 
 	void unloadEditor() {
 		if ( ckEditor != null ) {
-			ckEditor.destroy(true);
+			if ( syncPending ) {
+				sendChanges();
+			}
+			cancelSync();
+			// Ready editors are kept for reuse if the pool is enabled, a shared editor is always kept
+			boolean parked = ckEditorIsReady && ( sharedEditor ? CKEditorService.parkSharedEditor(poolKey, ckEditor) : CKEditorService.parkEditor(poolKey, ckEditor) );
+			if ( ! parked ) {
+				ckEditor.destroy(true);
+			}
 			ckEditor = null;
 		}
+		if ( sharedEditor && poolKey != null ) {
+			CKEditorService.unclaimSharedEditor(poolKey, this);
+		}
 
+		reusingParkedEditor = false;
 		ignoreDataChangesUntilReady = false;
 		ckEditorIsReady = false;
 		ckEditorIsBeingLoaded = false;
@@ -309,39 +431,190 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 		setTabIndexAfterReady = false;
 	}
 
+	/**
+	 * In lazy and shared editor mode the contents are shown as static HTML until the field is activated, 
+	 * otherwise the editor is loaded.
+	 */
+	private void loadEditorOrPlaceholder() {
+		if ( ( lazyLoading || sharedEditor ) && ! lazyActivated ) {
+			getElement().setInnerHTML(dataBeforeEdit != null ? CKEditorService.sanitizeHtml(dataBeforeEdit) : "");
+			addStyleName(CLASSNAME + "-lazy");
+			if ( lazyActivation == null && isAttached() ) {
+				getElement().setTabIndex(tabIndex); // so keyboard users can activate it as well
+				// a shared editor is only moved on user interaction, never just because a field scrolled into view
+				lazyActivation = observeActivation(getElement(), ! sharedEditor);
+			}
+		} else {
+			loadEditor();
+		}
+	}
+
+	/**
+	 * Called when a lazy field enters the viewport, gets focus or is clicked.
+	 * 
+	 * @param focus true if the user interacted with the field and the editor should get focus once ready
+	 */
+	private void activate(boolean focus) {
+		if ( lazyActivated || viewWithoutEditor ) {
+			return;
+		}
+		if ( sharedEditor ) {
+			// the field currently using the shared editor gives it back first
+			CKEditorService.claimSharedEditor(configId, this);
+		}
+		lazyActivated = true;
+		stopLazyActivation();
+		removeStyleName(CLASSNAME + "-lazy");
+		getElement().removeAttribute("tabIndex");
+		getElement().setInnerHTML("");
+		if ( focus ) {
+			setFocusAfterReady = true;
+		}
+		loadEditor();
+	}
+
+	private void stopLazyActivation() {
+		if ( lazyActivation != null ) {
+			disconnectActivation(lazyActivation);
+			lazyActivation = null;
+		}
+	}
+
+	// Shared editor callback
+	@Override
+	public void releaseSharedEditor() {
+		if ( ckEditorIsReady && ! readOnly && ! ignoreDataChangesUntilReady ) {
+			String data = ckEditor.getData();
+			if ( ! data.equals(dataBeforeEdit) ) {
+				sendData(data, true);
+			}
+		}
+		unloadEditor();
+		lazyActivated = false;
+		loadEditorOrPlaceholder();
+	}
+
+	private native JavaScriptObject observeActivation(Element element, boolean observeViewport)
+	/*-{
+		var self = this;
+		var activate = $entry(function(focus) {
+			self.@org.vaadin.alump.ckeditor.client.VCKEditorTextField::activate(Z)(focus);
+		});
+		var handle = {
+			element: element,
+			onInteraction: function() { activate(true); }
+		};
+		element.addEventListener('mousedown', handle.onInteraction, false);
+		element.addEventListener('focus', handle.onInteraction, false);
+		if (!observeViewport) {
+			// activated by interaction only
+		} else if ($wnd.IntersectionObserver) {
+			// start a bit before the field is actually visible, so the editor is usually ready when it gets there
+			handle.observer = new $wnd.IntersectionObserver(function(entries) {
+				for (var i = 0; i < entries.length; i++) {
+					if (entries[i].isIntersecting) {
+						activate(false);
+						return;
+					}
+				}
+			}, { rootMargin: '200px' });
+			handle.observer.observe(element);
+		} else {
+			$wnd.setTimeout(function() { activate(false); }, 0);
+		}
+		return handle;
+	}-*/;
+
+	private static native void disconnectActivation(JavaScriptObject handle)
+	/*-{
+		handle.element.removeEventListener('mousedown', handle.onInteraction, false);
+		handle.element.removeEventListener('focus', handle.onInteraction, false);
+		if (handle.observer) {
+			handle.observer.disconnect();
+		}
+	}-*/;
+
 	void loadEditor() {
-		if ( ckEditor == null && inPageConfig != null && ! ckEditorIsBeingLoaded ) {
+		if ( ckEditor == null && config != null && ! ckEditorIsBeingLoaded ) {
 			ckEditorIsBeingLoaded = true;
 
-			CKEditorService.loadLibrary(new ScheduledCommand() {
+			CKEditorService.loadLibrary(getLibraryUrl(), new ScheduledCommand() {
 				@Override
 				public void execute() {
-					ckEditor = (CKEditor)CKEditorService.loadEditor(
-							paintableId,
-							VCKEditorTextField.this,
-							inPageConfig,
-							outerWidth != null ? outerWidth.intValue() : VCKEditorTextField.super.getOffsetWidth(),
-							outerHeight != null ? outerHeight.intValue() : VCKEditorTextField.super.getOffsetHeight(),
-							startupMode != null ? startupMode : "wysiwyg");
-					ckEditorIsBeingLoaded = false; // Don't need this as we have ckEditor set now.
+					if ( basePath != null ) {
+						CKEditorService.setBasePath(basePath);
+					}
+					// The bundle registers languages, plugins and dialogs up front, so CKEditor doesn't request them one by one
+					if ( bundleUrl != null ) {
+						CKEditorService.loadScript(bundleUrl, new ScheduledCommand() {
+							@Override
+							public void execute() {
+								createEditor();
+							}
+						});
+					} else {
+						createEditor();
+					}
+				}
+			}, new ScheduledCommand() {
+				@Override
+				public void execute() {
+					ckEditorIsBeingLoaded = false; // allows the next update to try again
 				}
 			});
 		}
 	}
 
+	/**
+	 * @return the URL of ckeditor.js, the same one used for the dependency of the component, used if it hasn't been loaded yet
+	 */
+	private String getLibraryUrl() {
+		return clientToServer.translateVaadinUri(ApplicationConstants.PUBLISHED_PROTOCOL_PREFIX + "/editor/ckeditor.js");
+	}
+
+	private void createEditor() {
+		if ( ! ckEditorIsBeingLoaded || ckEditor != null ) {
+			return; // unloaded or already created while the bundle was loading
+		}
+		poolKey = configId; // the fingerprint stands for everything the editor is configured with
+		CKEditor parked = sharedEditor ? CKEditorService.takeSharedEditor(poolKey) : CKEditorService.takeParkedEditor(poolKey);
+		if ( parked != null ) {
+			ckEditor = parked;
+			ckEditorIsBeingLoaded = false;
+			reusingParkedEditor = true;
+			ignoreDataChangesUntilReady = true; // the mode switch must not report the data as changed
+			parked.unpark(getElement(), dataBeforeEdit != null ? dataBeforeEdit : "", startupMode != null ? startupMode : "wysiwyg", this);
+			return;
+		}
+		if ( config.inline ) {
+			ckEditor = (CKEditor)CKEditorService.loadInlineEditor(getElement(), VCKEditorTextField.this, CKEditorService.getInPageConfig(configId));
+		} else {
+			if ( getElement().getId().isEmpty() ) {
+				getElement().setId(paintableId);
+			}
+			ckEditor = (CKEditor)CKEditorService.loadEditor(
+					getElement().getId(),
+					VCKEditorTextField.this,
+					CKEditorService.getInPageConfig(configId),
+					outerWidth != null ? outerWidth.intValue() : VCKEditorTextField.super.getOffsetWidth(),
+					outerHeight != null ? outerHeight.intValue() : VCKEditorTextField.super.getOffsetHeight(),
+					startupMode != null ? startupMode : "wysiwyg");
+		}
+		ckEditorIsBeingLoaded = false; // Don't need this as we have ckEditor set now.
+	}
+
 	// Listener callback
 	@Override
 	public void onSave() {
 		if ( ckEditorIsReady && ! readOnly ) {
 			// Called if the user clicks the Save button. 
+			cancelSync();
 			String data = ckEditor.getData();
 			if ( ! data.equals(dataBeforeEdit) ) {
-				clientToServer.updateVariable(paintableId, VAR_TEXT, data, false);
-				dataBeforeEdit = data;
+				sendData(data, true);
 				ignoreDataChangesUntilReady = false; // If they give us data by saving, we don't ignore whatever it is
 			}
-			clientToServer.updateVariable(paintableId, VAR_VAADIN_SAVE_BUTTON_PRESSED,"",false); // inform that the button was pressed too
-			clientToServer.sendPendingVariableChanges(); // ensure anything queued up goes now on SAVE
+			serverRpc.save(); // inform that the button was pressed too, after the data
 		}
 	}
 
@@ -361,26 +634,19 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	@Override
 	public void onBlur() {
 		if ( ckEditorIsReady ) {
-			boolean sendToServer = false;
-			
-			if ( clientToServer.hasEventListeners(this, EventId.BLUR) ) {
-				sendToServer = true;
-	            clientToServer.updateVariable(paintableId, EventId.BLUR, "", false);
-			}
-			
 			// Even though CKEditor 4.2 introduced a change event, it doesn't appear to fire if the user stays in SOURCE mode,
 			// so while we do use the change event, we still are stuck with the blur listener to detect other such changes.
 			if (  ! readOnly && ! ignoreDataChangesUntilReady ) {
+				cancelSync();
 				String data = ckEditor.getData();
 				if ( ! data.equals(dataBeforeEdit) ) {
-					clientToServer.updateVariable(paintableId, VAR_TEXT, data, false);
-	            	sendToServer = true;
-	            	dataBeforeEdit = data; 
+					sendData(data, true);
 				}
 			}
 
-	        if (sendToServer) {
-	            clientToServer.sendPendingVariableChanges();
+			// after the data, so blur listeners see the new value
+			if ( clientToServer.hasEventListeners(this, EventId.BLUR) ) {
+				serverRpc.blur();
 			}
 		}
 	}
@@ -390,7 +656,7 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	public void onFocus() {
 		if ( ckEditorIsReady ) {
 			if ( clientToServer.hasEventListeners(this, EventId.FOCUS) ) {
-	            clientToServer.updateVariable(paintableId, EventId.FOCUS, "", true);
+				serverRpc.focus();
 			}
 		}
 	}
@@ -398,33 +664,41 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	// Listener callback
 	@Override
 	public void onInstanceReady() {
+		if ( ckEditor == null ) {
+			return; // unloaded while a parked editor was switching its mode
+		}
 		ckEditorIsReady = true;
 
 		ckEditor.instanceReady(this);
 		
-		if ( writerRules != null ) {
-			Set<String> tagNameSet = writerRules.keySet();
-			for( String tagName : tagNameSet ) {
-				ckEditor.setWriterRules(tagName, writerRules.get(tagName));
+		// A parked editor was created with the same configuration and already has all of this
+		CKEditorConfigData editorConfig = CKEditorService.getConfig(poolKey); // the one the editor was created with
+		if ( ! reusingParkedEditor && editorConfig != null ) {
+			if ( editorConfig.writerRules != null ) {
+				Set<String> tagNameSet = editorConfig.writerRules.keySet();
+				for( String tagName : tagNameSet ) {
+					ckEditor.setWriterRules(tagName, editorConfig.writerRules.get(tagName));
+				}
 			}
-		}
-		
-		if ( writerIndentationChars != null ) {
-			ckEditor.setWriterIndentationChars(writerIndentationChars);
-		}
-		
-		if ( keystrokeMappings != null ) {
-			Set<Integer> keystrokeSet = keystrokeMappings.keySet();
-			for( Integer keystroke : keystrokeSet ) {
-				ckEditor.setKeystroke(keystroke, keystrokeMappings.get(keystroke));
+			
+			if ( editorConfig.writerIndentationChars != null ) {
+				ckEditor.setWriterIndentationChars(editorConfig.writerIndentationChars);
 			}
-		}
-		
-		if ( protectedSourceList != null ) {
-			for( String regex : protectedSourceList ) {
-				ckEditor.pushProtectedSource(regex);
+			
+			if ( editorConfig.keystrokes != null ) {
+				Set<Integer> keystrokeSet = editorConfig.keystrokes.keySet();
+				for( Integer keystroke : keystrokeSet ) {
+					ckEditor.setKeystroke(keystroke, editorConfig.keystrokes.get(keystroke));
+				}
+			}
+			
+			if ( editorConfig.protectedSource != null ) {
+				for( String regex : editorConfig.protectedSource ) {
+					ckEditor.pushProtectedSource(regex);
+				}
 			}
 		}
+		reusingParkedEditor = false;
 		
 		if ( dataBeforeEdit != null ) {
 			setEditorData(dataBeforeEdit);
@@ -448,17 +722,197 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 		ckEditor.setReadOnly(readOnly);
 
 		ckeditorVersion = CKEditorService.version();
-		clientToServer.updateVariable(paintableId, VAR_VERSION, ckeditorVersion, true);
+		serverRpc.editorReady(ckeditorVersion);
 	}
 	
 	// Listener callback
 	@Override
 	public void onChange() {
 		if ( ckEditor != null && ! readOnly && ! ignoreDataChangesUntilReady ) {
+			if ( syncDebounce > 0 ) {
+				scheduleSync();
+				return;
+			}
+			String data = ckEditor.getData();
+			if ( ! data.equals(dataBeforeEdit) ) {
+				sendData(data, syncDebounce == 0);
+			}
+		}
+	}
+	
+	/**
+	 * (Re)starts the debounce delay, and the maximum wait with the first change since the last flush. The data is only
+	 * read from the editor once a delay ends, so all changes until then are sent in one transfer.
+	 */
+	private void scheduleSync() {
+		if ( syncDebounceTimer == null ) {
+			syncDebounceTimer = new Timer() {
+				@Override
+				public void run() {
+					flushSync();
+				}
+			};
+			syncMaxWaitTimer = new Timer() {
+				@Override
+				public void run() {
+					flushSync();
+				}
+			};
+		}
+		syncDebounceTimer.schedule(syncDebounce);
+		// Also while a flush waits for the browser to be idle, the maximum wait then applies to the new changes
+		if ( syncMaxWait > 0 && ! syncMaxWaitTimer.isRunning() ) {
+			syncMaxWaitTimer.schedule(syncMaxWait);
+		}
+		syncPending = true;
+	}
+	
+	private void flushSync() {
+		cancelSync();
+		if ( syncIdleFlush ) {
+			syncPending = true; // still pending until the browser is idle, e.g. for unloadEditor()
+			if ( syncIdleScheduled ) {
+				return; // sends these changes too
+			}
+			syncIdleScheduled = true;
+			CKEditorService.whenIdle(new ScheduledCommand() {
+				@Override
+				public void execute() {
+					syncIdleScheduled = false;
+					if ( syncPending ) {
+						cancelSync(); // changes made meanwhile are sent now as well
+						sendChanges();
+					}
+				}
+			});
+		} else {
+			sendChanges();
+		}
+	}
+	
+	private void cancelSync() {
+		if ( syncDebounceTimer != null ) {
+			syncDebounceTimer.cancel();
+			syncMaxWaitTimer.cancel();
+		}
+		syncPending = false;
+	}
+	
+	/**
+	 * Sends the data of the editor if it changed
+	 */
+	private void sendChanges() {
+		syncPending = false;
+		if ( ckEditorIsReady && ! readOnly && ! ignoreDataChangesUntilReady ) {
 			String data = ckEditor.getData();
 			if ( ! data.equals(dataBeforeEdit) ) {
-				clientToServer.updateVariable(paintableId, VAR_TEXT, data, immediate);
-            	dataBeforeEdit = data;
+				sendData(data, true);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the data of the editor to the server. If the server already has a text, only a {@link TextPatch} against
+	 * it is sent, unless the full data is shorter. The data becomes the new dataBeforeEdit.
+	 * 
+	 * @param data the data of the editor
+	 * @param immediate true to send it right away, false to queue it until the next request
+	 */
+	private void sendData(String data, boolean immediate) {
+		if ( transferText != null ) {
+			// Sent once the running transfer is complete
+			dataAfterTransfer = data;
+			return;
+		}
+		// A queued delayed call is replaced by the next delayed one, which therefore has to be made against the text
+		// the server had before the queued call. An immediate call is sent after the queued one.
+		String base = textQueued && ! immediate ? queuedBase : dataBeforeEdit;
+		String patch = base != null ? TextPatch.create(base, data) : null;
+		if ( patch != null && patch.length() < data.length() ) {
+			sendText(TextChunk.PATCH, TextCompression.encode(patch, compressionThreshold), immediate);
+		} else {
+			sendText(TextChunk.TEXT, TextCompression.encode(data, compressionThreshold), immediate);
+		}
+		if ( ! immediate && transferText == null ) {
+			queuedBase = base;
+			textQueued = true;
+		}
+		dataBeforeEdit = data;
+	}
+	
+	/**
+	 * Sends the text or patch. A value longer than the chunk size is sent in chunks instead, one after the other as the
+	 * server acknowledges them, so the editor stays usable and no request gets too large.
+	 * 
+	 * @param name {@link TextChunk#TEXT} or {@link TextChunk#PATCH}
+	 */
+	private void sendText(String name, String value, boolean immediate) {
+		if ( chunkSize > 0 && value.length() > chunkSize ) {
+			transferName = name;
+			transferText = value;
+			transferVersion = textVersion;
+			++transferCount;
+			sendChunk(0);
+			return;
+		}
+		transferRestarted = false; // a restarted text that fits into one request
+		String text = TextChunk.TEXT.equals(name) ? value : null;
+		String patch = TextChunk.PATCH.equals(name) ? value : null;
+		// The version tells the server which of its texts we changed, so it does not need to send ours back
+		if ( immediate ) {
+			serverRpc.textChanged(textVersion, text, patch);
+		} else {
+			serverRpc.textChangedLater(textVersion, text, patch);
+		}
+	}
+	
+	private void sendChunk(int index) {
+		// the version goes with every chunk, the server needs it with the last one
+		serverRpc.textChunk(transferVersion, TextChunk.encode(transferName, transferCount, transferText, chunkSize, index));
+	}
+	
+	/**
+	 * Continues the running transfer with the chunk the server expects next
+	 * 
+	 * @param transfer the transfer the acknowledged chunk belongs to
+	 * @param next the index of the next chunk, {@link TextChunk#REJECTED} or {@link TextChunk#TOO_LARGE} if the server
+	 *            rejected the text
+	 */
+	void onChunkAck(int transfer, int next) {
+		if ( transferText == null || transfer != transferCount ) {
+			return; // an earlier transfer
+		}
+		if ( next >= 0 && next < TextChunk.getCount(transferText, chunkSize) ) {
+			sendChunk(next);
+			return;
+		}
+		String rejectedName = transferName;
+		transferText = null;
+		transferName = null;
+		String data = dataAfterTransfer;
+		dataAfterTransfer = null;
+		if ( next == TextChunk.TOO_LARGE ) {
+			GWT.log("The server rejected a " + rejectedName + " longer than it accepts, see ckeditor.maxTextLength");
+			dataBeforeEdit = null; // the server does not have it
+			transferRestarted = false;
+			if ( data != null ) {
+				sendData(data, true); // possibly short enough after further changes
+			}
+		} else if ( next < 0 ) {
+			// Unknown transfer or checksum mismatch, the text is sent again in full as a new transfer, but only once
+			String text = data != null ? data : dataBeforeEdit;
+			dataBeforeEdit = null; // the server does not have it
+			if ( transferRestarted ) {
+				GWT.log("The server rejected a " + rejectedName + " twice, it is not sent again");
+				transferRestarted = false;
+			} else if ( text != null ) {
+				transferRestarted = true;
+				sendData(text, true);
+			}
+		} else {
+			transferRestarted = false;
+			if ( data != null && ! data.equals(dataBeforeEdit) ) {
+				sendData(data, true);
 			}
 		}
 	}
@@ -468,10 +922,10 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	public void onModeChange(String mode) {
 		if ( ckEditor != null ) {
 			if ( ! readOnly && ! ignoreDataChangesUntilReady ) {
+				cancelSync();
 				String data = ckEditor.getData();
 				if ( ! data.equals(dataBeforeEdit) ) {
-					clientToServer.updateVariable(paintableId, VAR_TEXT, data, true);
-	            	dataBeforeEdit = data; 
+					sendData(data, true);
 				}
 			}
 
@@ -499,7 +953,7 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 				// We'll send an update for nothing selected (unselected) only if we've sent out an event for a prior selected event.
 				boolean isBlankSelection = "".equals(html);
 				if ( ! isBlankSelection || notifyBlankSelection ) {
-		            clientToServer.updateVariable(paintableId, EVENT_SELECTION_CHANGE, html, true);
+					serverRpc.selectionChanged(html);
 		            notifyBlankSelection = ! isBlankSelection;
 				}
 			}
@@ -543,12 +997,13 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	@Override
 	protected void onLoad() {
 		if ( ! viewWithoutEditor ) {
-			loadEditor();
+			loadEditorOrPlaceholder();
 		}
 	}
 
 	@Override
 	protected void onUnload() {
+		stopLazyActivation();
 		unloadEditor();
 	}
 
@@ -579,7 +1034,9 @@ public class VCKEditorTextField extends Widget implements Paintable, CKEditorSer
 	@Override
 	public void setFocus(boolean arg0) {
 		if (arg0) {
-			if (ckEditorIsReady)
+			if ((lazyLoading || sharedEditor) && ! lazyActivated)
+				activate(true);
+			else if (ckEditorIsReady)
 				ckEditor.focus();
 			else
 				setFocusAfterReady = true;
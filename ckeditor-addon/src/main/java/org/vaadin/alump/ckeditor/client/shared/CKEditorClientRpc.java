@@ -0,0 +1,43 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import com.vaadin.shared.communication.ClientRpc;
+
+/**
+ * Server->Client interface
+ */
+public interface CKEditorClientRpc extends ClientRpc {
+
+	/**
+	 * Sets the text. Either <code>text</code> or <code>patch</code> is set, both possibly compressed,
+	 * see {@link TextCompression}.
+	 *
+	 * @param version the version of the text, sent back with the changes of the client
+	 * @param text the whole text
+	 * @param patch a {@link TextPatch} against the text the client last sent or received
+	 */
+	void setText(int version, String text, String patch);
+
+	/**
+	 * The server could not apply the last patch, the client has to send the whole text
+	 */
+	void resendText();
+
+	/**
+	 * Acknowledges a chunk of a text
+	 *
+	 * @param transfer the transfer the chunk belongs to
+	 * @param next the index of the next expected chunk, {@link TextChunk#REJECTED} or {@link TextChunk#TOO_LARGE} if
+	 *            the server rejected the text
+	 */
+	void chunkAck(int transfer, int next);
+
+	/**
+	 * @param html the HTML to insert at the cursor, possibly compressed
+	 */
+	void insertHtml(String html);
+
+	void insertText(String text);
+
+	void focus();
+
+}
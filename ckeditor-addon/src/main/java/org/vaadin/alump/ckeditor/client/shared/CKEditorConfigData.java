@@ -0,0 +1,28 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything an editor is created with. Sent once per UI and configuration, fields reference it by its fingerprint,
+ * see {@link CKEditorConfigRpc}.
+ * <p>
+ * The in-page config, writer rules and protected source are strict JSON. Values JSON has no notation for are sent as
+ * <code>{"$regex": source, "flags": flags}</code> for regular expressions and <code>{"$js": source}</code> for
+ * anything else, e.g. functions.
+ */
+public class CKEditorConfigData implements Serializable {
+
+	/** the in-page config of the editor, possibly compressed, see {@link TextCompression} */
+	public String inPageConfig;
+	public boolean inline;
+	/** writer rules as JSON objects by tag name */
+	public Map<String, String> writerRules;
+	public String writerIndentationChars;
+	/** commands by keystroke */
+	public Map<Integer, String> keystrokes;
+	/** regular expressions of protected source */
+	public List<String> protectedSource;
+
+}
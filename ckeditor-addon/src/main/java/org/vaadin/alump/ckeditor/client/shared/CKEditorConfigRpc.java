@@ -0,0 +1,25 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import com.vaadin.shared.communication.ClientRpc;
+
+/**
+ * Server->Client interface of the config registry of a UI
+ */
+public interface CKEditorConfigRpc extends ClientRpc {
+
+	/**
+	 * Registers a configuration in the browser. Each configuration is only sent once per UI.
+	 *
+	 * @param fingerprint the fingerprint of the content, {@link CKEditorState#configId} of the fields using it
+	 * @param config the configuration
+	 */
+	void register(String fingerprint, CKEditorConfigData config);
+
+	/**
+	 * Tells the browser that no field of the UI uses the configuration anymore.
+	 *
+	 * @param fingerprint the fingerprint of a registered configuration
+	 */
+	void unregister(String fingerprint);
+
+}
@@ -0,0 +1,13 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import com.vaadin.shared.communication.SharedState;
+
+/**
+ * State of the CKEditorPreloader extension
+ */
+public class CKEditorPreloaderState extends SharedState {
+
+	/** The published URL of ckeditor.js, the same one the component loads as dependency */
+	public String libraryUrl;
+
+}
@@ -1,5 +1,6 @@
 package org.vaadin.alump.ckeditor.client.shared;
 
+import com.vaadin.shared.annotations.Delayed;
 import com.vaadin.shared.communication.ServerRpc;
 
 /**
@@ -7,5 +8,60 @@ import com.vaadin.shared.communication.ServerRpc;
  */
 public interface CKEditorServerRpc extends ServerRpc {
 
+	/**
+	 * The user changed the text. Either <code>text</code> or <code>patch</code> is set, both possibly compressed,
+	 * see {@link TextCompression}.
+	 *
+	 * @param version the version of the last text received from the server
+	 * @param text the whole text
+	 * @param patch a {@link TextPatch} against the text the server has
+	 */
+	void textChanged(int version, String text, String patch);
+
+	/**
+	 * Same as {@link #textChanged(int, String, String)}, but sent with the next request. A later call replaces a call
+	 * that is still queued, so its patch must be made against the text the server had before the queued call.
+	 */
+	@Delayed(lastOnly = true)
+	void textChangedLater(int version, String text, String patch);
+
+	/**
+	 * A part of a large text, acknowledged with {@link CKEditorClientRpc#chunkAck(int, int)}
+	 *
+	 * @param version the version of the last text received from the server
+	 * @param chunk an encoded {@link TextChunk}
+	 */
+	void textChunk(int version, String chunk);
+
+	/**
+	 * The client could not apply a patch and needs the whole text
+	 */
+	void requestText();
+
+	void selectionChanged(String selectedHtml);
+
+	/**
+	 * The vaadinsave button was pressed
+	 */
+	void save();
+
+	void focus();
+
+	void blur();
+
+	/**
+	 * The editor is ready
+	 *
+	 * @param version the CKEditor version
+	 */
+	void editorReady(String version);
+
+	/**
+	 * A changed configuration was applied to the editor
+	 *
+	 * @param configId the fingerprint of the configuration
+	 * @param rebuilt true if the editor was created anew, false if the changes were applied to the running editor
+	 */
+	void configUpdated(String configId, boolean rebuilt);
 
 }
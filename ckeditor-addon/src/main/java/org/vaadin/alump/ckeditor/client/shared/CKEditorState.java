@@ -0,0 +1,37 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import com.vaadin.shared.AbstractFieldState;
+
+/**
+ * State of the CKEditor text field. Only changed fields are sent to the client, the text itself goes through
+ * {@link CKEditorClientRpc} and {@link CKEditorServerRpc} as it changes on both sides.
+ */
+public class CKEditorState extends AbstractFieldState {
+
+	/** ms without changes until the client sends them, 0 to send every change, -1 to send them with the next request */
+	public int syncDebounce = -1;
+	/** ms after the first unsent change until the client sends it at the latest, 0 for no limit */
+	public int syncMaxWait;
+	/** the client sends when the browser is idle once a delay ended */
+	public boolean syncIdleFlush;
+
+	public boolean viewWithoutEditor;
+	public boolean lazyLoading;
+	public boolean sharedEditor;
+	public boolean protectedBody;
+
+	/** number of detached editors the browser keeps for reuse */
+	public int poolSize;
+	/** minimum length of texts sent compressed, 0 to never compress */
+	public int compressionThreshold;
+	/** maximum length of a text sent in one request, 0 for no limit */
+	public int chunkSize;
+	/** base path of the editor files if they are served by the resource handler */
+	public String basePath;
+	/** script bundle of the config if the editor files are served by the resource handler */
+	public String bundleUrl;
+
+	/** fingerprint of the {@link CKEditorConfigData} the editor is created with, registered through {@link CKEditorConfigRpc} */
+	public String configId;
+
+}
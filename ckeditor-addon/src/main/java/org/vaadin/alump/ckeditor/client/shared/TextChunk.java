@@ -0,0 +1,136 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+/**
+ * A part of a large text variable that the client sends in several requests. Every chunk carries the whole header,
+ * so the server can check each one and the client can resume at any chunk.
+ * <p>
+ * The encoded form is <code>name:transfer:index:count:checksum:data</code>. <code>name</code> tells whether the
+ * assembled text is the whole text ({@link #TEXT}) or a patch ({@link #PATCH}), <code>checksum</code> is the
+ * {@link #checksum(String)} of the whole text, which also tells its length.
+ * <p>
+ * Used by both the server and the GWT client, so only uses the emulated JRE.
+ */
+public final class TextChunk {
+
+	public static final String TEXT = "text";
+	public static final String PATCH = "textPatch";
+
+	/**
+	 * Acknowledgement of a rejected transfer, e.g. for an unknown transfer or a checksum mismatch. The client may start
+	 * the transfer again.
+	 */
+	public static final int REJECTED = -1;
+
+	/**
+	 * Acknowledgement of a transfer whose text is longer than the server accepts. Sending it again is pointless.
+	 */
+	public static final int TOO_LARGE = -2;
+
+	private static final char SEPARATOR = ':';
+	private static final int HEADER_FIELDS = 5;
+
+	public final String name;
+	public final int transfer;
+	public final int index;
+	public final int count;
+	public final String checksum;
+	public final String data;
+
+	public TextChunk(String name, int transfer, int index, int count, String checksum, String data) {
+		this.name = name;
+		this.transfer = transfer;
+		this.index = index;
+		this.count = count;
+		this.checksum = checksum;
+		this.data = data;
+	}
+
+	/**
+	 * @param text the whole text
+	 * @param chunkSize the maximum length of a chunk
+	 * @return the number of chunks needed for the text
+	 */
+	public static int getCount(String text, int chunkSize) {
+		return Math.max(1, ( text.length() + chunkSize - 1 ) / chunkSize);
+	}
+
+	/**
+	 * Creates one chunk of a text
+	 *
+	 * @param name {@link #TEXT} or {@link #PATCH}
+	 * @param transfer identifies the transfer
+	 * @param text the whole text
+	 * @param chunkSize the length of a chunk
+	 * @param index the index of the chunk
+	 * @return the encoded chunk
+	 */
+	public static String encode(String name, int transfer, String text, int chunkSize, int index) {
+		String data = text.substring(boundary(text, chunkSize, index), boundary(text, chunkSize, index + 1));
+		return name + SEPARATOR + transfer + SEPARATOR + index + SEPARATOR + getCount(text, chunkSize)
+				+ SEPARATOR + checksum(text) + SEPARATOR + data;
+	}
+
+	/**
+	 * Never splits a surrogate pair, as a chunk with half of it could not be encoded. A chunk can therefore be one
+	 * character shorter or longer than the chunk size.
+	 *
+	 * @return the start of the chunk with the index
+	 */
+	private static int boundary(String text, int chunkSize, int index) {
+		int boundary = Math.min(text.length(), index * chunkSize);
+		if ( boundary > 0 && boundary < text.length() && isHighSurrogate(text.charAt(boundary - 1)) ) {
+			--boundary;
+		}
+		return boundary;
+	}
+
+	private static boolean isHighSurrogate(char c) {
+		return c >= '\uD800' && c <= '\uDBFF';
+	}
+
+	/**
+	 * @param text the whole text
+	 * @return the checksum of the text
+	 */
+	public static String checksum(String text) {
+		return TextPatch.fingerprint(text);
+	}
+
+	/**
+	 * @param chunk an encoded chunk
+	 * @return the chunk, or <code>null</code> if it is invalid
+	 */
+	public static TextChunk decode(String chunk) {
+		if ( chunk == null ) {
+			return null;
+		}
+		String[] fields = new String[HEADER_FIELDS];
+		int from = 0;
+		for ( int i = 0; i < HEADER_FIELDS; ++i ) {
+			int separator = chunk.indexOf(SEPARATOR, from);
+			if ( separator < 0 ) {
+				return null;
+			}
+			fields[i] = chunk.substring(from, separator);
+			from = separator + 1;
+		}
+		try {
+			return new TextChunk(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+					fields[4], chunk.substring(from));
+		} catch ( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the length of the whole text, taken from the checksum, or -1 if the checksum is invalid
+	 */
+	public int getTotalLength() {
+		int dot = checksum.indexOf('.');
+		try {
+			return dot > 0 ? Integer.parseInt(checksum.substring(0, dot)) : -1;
+		} catch ( NumberFormatException e ) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compresses large texts like editor HTML for the transfer between client and server. Uses the LZW variant of
+ * lz-string with the output packed into base64 characters, so the result is plain ASCII that needs no escaping in
+ * JSON. HTML usually shrinks to a fifth or less.
+ * <p>
+ * Compressed values are marked with a leading {@link #MARKER} and travel in the same variable or attribute as plain
+ * ones, so a value can always be passed through {@link #decode(String)}. A text that itself starts with the marker
+ * is always compressed to stay unambiguous.
+ * <p>
+ * Used by both the server and the GWT client, so only uses the emulated JRE.
+ */
+public final class TextCompression {
+
+	public static final char MARKER = '\u0001';
+
+	private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=";
+	private static final int BITS_PER_CHAR = 6;
+	private static final double MIN_COMPRESSION_GAIN = 0.9; // compressed must be at least 10% smaller
+	private static final int MAX_EXPANSION = 1000; // limits the decompressed length of a forged value
+
+	private TextCompression() {
+	}
+
+	/**
+	 * Compresses a text if it is at least <code>threshold</code> characters long and compression pays off
+	 *
+	 * @param text the text
+	 * @param threshold minimum length of texts to compress, 0 or less to never compress
+	 * @return the compressed value with the marker, or the text itself
+	 */
+	public static String encode(String text, int threshold) {
+		if ( text == null ) {
+			return null;
+		}
+		boolean startsWithMarker = text.length() > 0 && text.charAt(0) == MARKER;
+		if ( ! startsWithMarker && ( threshold <= 0 || text.length() < threshold ) ) {
+			return text;
+		}
+		String compressed = compress(text);
+		if ( startsWithMarker || compressed.length() < text.length() * MIN_COMPRESSION_GAIN ) {
+			return MARKER + compressed;
+		}
+		return text;
+	}
+
+	/**
+	 * @param value a value from {@link #encode(String, int)}
+	 * @return true if the value is compressed
+	 */
+	public static boolean isCompressed(String value) {
+		return value != null && value.length() > 0 && value.charAt(0) == MARKER;
+	}
+
+	/**
+	 * @param value a value from {@link #encode(String, int)}
+	 * @return the text, or <code>null</code> if the compressed data is invalid
+	 */
+	public static String decode(String value) {
+		return isCompressed(value) ? decompress(value.substring(1)) : value;
+	}
+
+	/**
+	 * Compresses a text
+	 *
+	 * @param text the text
+	 * @return the compressed text in base64 characters
+	 */
+	public static String compress(String text) {
+		Compressor compressor = new Compressor();
+		String w = "";
+		for ( int i = 0; i < text.length(); ++i ) {
+			String c = String.valueOf(text.charAt(i));
+			if ( ! compressor.dictionary.containsKey(c) ) {
+				compressor.dictionary.put(c, compressor.dictionarySize++);
+				compressor.unwritten.put(c, Boolean.TRUE);
+			}
+			String wc = w + c;
+			if ( compressor.dictionary.containsKey(wc) ) {
+				w = wc;
+			} else {
+				compressor.writePhrase(w);
+				compressor.dictionary.put(wc, compressor.dictionarySize++);
+				w = c;
+			}
+		}
+		if ( w.length() > 0 ) {
+			compressor.writePhrase(w);
+		}
+		compressor.write(2, compressor.numBits); // end of stream
+		return compressor.finish();
+	}
+
+	/**
+	 * Decompresses a text from {@link #compress(String)}
+	 *
+	 * @param compressed the compressed text
+	 * @return the text, or <code>null</code> if the data is invalid
+	 */
+	public static String decompress(String compressed) {
+		if ( compressed == null ) {
+			return null;
+		}
+		if ( compressed.length() == 0 ) {
+			return "";
+		}
+		long maxLength = (long) compressed.length() * MAX_EXPANSION;
+		Decompressor in = new Decompressor(compressed);
+		List<String> dictionary = new ArrayList<String>();
+		for ( int i = 0; i < 3; ++i ) {
+			dictionary.add(null); // the codes 0 to 2 are control codes
+		}
+		int enlargeIn = 4;
+		int numBits = 3;
+
+		String w;
+		switch ( in.read(2) ) {
+			case 0: w = String.valueOf((char) in.read(8)); break;
+			case 1: w = String.valueOf((char) in.read(16)); break;
+			case 2: return "";
+			default: return null;
+		}
+		dictionary.add(w);
+		StringBuilder result = new StringBuilder(w);
+
+		while ( true ) {
+			if ( in.isExhausted() || result.length() > maxLength ) {
+				return null;
+			}
+			int code = in.read(numBits);
+			if ( code == 0 || code == 1 ) {
+				dictionary.add(String.valueOf((char) in.read(code == 0 ? 8 : 16)));
+				code = dictionary.size() - 1;
+				--enlargeIn;
+			} else if ( code == 2 ) {
+				return result.toString();
+			}
+			if ( enlargeIn == 0 ) {
+				enlargeIn = 1 << numBits;
+				++numBits;
+			}
+
+			String entry;
+			if ( code < dictionary.size() ) {
+				entry = dictionary.get(code);
+			} else if ( code == dictionary.size() ) {
+				entry = w + w.charAt(0);
+			} else {
+				return null;
+			}
+			result.append(entry);
+			dictionary.add(w + entry.charAt(0));
+			--enlargeIn;
+			w = entry;
+
+			if ( enlargeIn == 0 ) {
+				enlargeIn = 1 << numBits;
+				++numBits;
+			}
+		}
+	}
+
+	private static class Compressor {
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		private final Map<String, Boolean> unwritten = new HashMap<String, Boolean>(); // single chars not written yet
+		private final StringBuilder out = new StringBuilder();
+		private int dictionarySize = 3;
+		private int numBits = 2;
+		private int enlargeIn = 2;
+		private int value = 0;
+		private int position = 0;
+
+		private void writePhrase(String w) {
+			if ( unwritten.remove(w) != null ) {
+				// a new char, written as literal
+				char c = w.charAt(0);
+				if ( c < 256 ) {
+					write(0, numBits);
+					write(c, 8);
+				} else {
+					write(1, numBits);
+					write(c, 16);
+				}
+				countWritten();
+			} else {
+				write(dictionary.get(w), numBits);
+			}
+			countWritten();
+		}
+
+		private void countWritten() {
+			if ( --enlargeIn == 0 ) {
+				enlargeIn = 1 << numBits;
+				++numBits;
+			}
+		}
+
+		private void write(int data, int bits) {
+			for ( int i = 0; i < bits; ++i ) {
+				value = ( value << 1 ) | ( data & 1 );
+				data >>= 1;
+				nextBit();
+			}
+		}
+
+		private void nextBit() {
+			if ( position == BITS_PER_CHAR - 1 ) {
+				out.append(ALPHABET.charAt(value));
+				position = 0;
+				value = 0;
+			} else {
+				++position;
+			}
+		}
+
+		private String finish() {
+			// pads the last char
+			while ( position != 0 ) {
+				value <<= 1;
+				nextBit();
+			}
+			while ( out.length() % 4 != 0 ) {
+				out.append('=');
+			}
+			return out.toString();
+		}
+	}
+
+	private static class Decompressor {
+		private final String data;
+		private int index = 1;
+		private int value;
+		private int position = 1 << ( BITS_PER_CHAR - 1 );
+
+		private Decompressor(String data) {
+			this.data = data;
+			value = charValue(0);
+		}
+
+		private int read(int bits) {
+			int result = 0;
+			for ( int i = 0; i < bits; ++i ) {
+				if ( ( value & position ) != 0 ) {
+					result |= 1 << i;
+				}
+				position >>= 1;
+				if ( position == 0 ) {
+					position = 1 << ( BITS_PER_CHAR - 1 );
+					value = charValue(index++);
+				}
+			}
+			return result;
+		}
+
+		private boolean isExhausted() {
+			return index > data.length();
+		}
+
+		private int charValue(int i) {
+			return i < data.length() ? Math.max(ALPHABET.indexOf(data.charAt(i)), 0) : 0;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+/**
+ * A single replace operation that turns one text into another, used to send only the changed part of a document
+ * between client and server. Editing a document changes one contiguous region in the vast majority of cases, so the
+ * patch keeps the common prefix and suffix and carries just the replaced region.
+ * <p>
+ * The encoded form is <code>base:result:start:removeCount:insert</code>, where <code>base</code> and
+ * <code>result</code> are fingerprints of the text before and after. A patch is only applied to the exact text it was
+ * created from, otherwise {@link #apply(String, String)} returns <code>null</code> and the full text has to be sent.
+ * <p>
+ * Used by both the server and the GWT client, so only uses the emulated JRE.
+ */
+public final class TextPatch {
+
+	private static final char SEPARATOR = ':';
+
+	private TextPatch() {
+	}
+
+	/**
+	 * @param text the text
+	 * @return a short fingerprint of the text, made of its length and hash code
+	 */
+	public static String fingerprint(String text) {
+		return text.length() + "." + Integer.toHexString(text.hashCode());
+	}
+
+	/**
+	 * Creates the patch that turns <code>base</code> into <code>result</code>
+	 *
+	 * @param base the text the receiver has
+	 * @param result the new text
+	 * @return the encoded patch
+	 */
+	public static String create(String base, String result) {
+		int baseLength = base.length();
+		int resultLength = result.length();
+		int maxCommon = Math.min(baseLength, resultLength);
+
+		int prefix = 0;
+		while ( prefix < maxCommon && base.charAt(prefix) == result.charAt(prefix) ) {
+			++prefix;
+		}
+		int suffix = 0;
+		while ( suffix < maxCommon - prefix && base.charAt(baseLength - 1 - suffix) == result.charAt(resultLength - 1 - suffix) ) {
+			++suffix;
+		}
+		// Never split a surrogate pair, the inserted text could not be encoded otherwise
+		if ( prefix > 0 && isHighSurrogate(result.charAt(prefix - 1)) ) {
+			--prefix;
+		}
+		if ( suffix > 0 && isLowSurrogate(result.charAt(resultLength - suffix)) ) {
+			--suffix;
+		}
+
+		int removeCount = baseLength - prefix - suffix;
+		String insert = result.substring(prefix, resultLength - suffix);
+		return fingerprint(base) + SEPARATOR + fingerprint(result) + SEPARATOR + prefix + SEPARATOR + removeCount + SEPARATOR + insert;
+	}
+
+	/**
+	 * Applies a patch
+	 *
+	 * @param base the text the patch should be applied to
+	 * @param patch the encoded patch, see {@link #create(String, String)}
+	 * @return the patched text, or <code>null</code> if the patch was not created from <code>base</code> or is invalid
+	 */
+	public static String apply(String base, String patch) {
+		if ( base == null || patch == null ) {
+			return null;
+		}
+		int[] separators = new int[4];
+		int from = 0;
+		for ( int i = 0; i < separators.length; ++i ) {
+			separators[i] = patch.indexOf(SEPARATOR, from);
+			if ( separators[i] < 0 ) {
+				return null;
+			}
+			from = separators[i] + 1;
+		}
+
+		if ( ! patch.substring(0, separators[0]).equals(fingerprint(base)) ) {
+			return null;
+		}
+		String resultFingerprint = patch.substring(separators[0] + 1, separators[1]);
+		int start;
+		int removeCount;
+		try {
+			start = Integer.parseInt(patch.substring(separators[1] + 1, separators[2]));
+			removeCount = Integer.parseInt(patch.substring(separators[2] + 1, separators[3]));
+		} catch ( NumberFormatException e ) {
+			return null;
+		}
+		if ( start < 0 || removeCount < 0 || start + removeCount > base.length() ) {
+			return null;
+		}
+
+		String result = base.substring(0, start) + patch.substring(separators[3] + 1) + base.substring(start + removeCount);
+		return resultFingerprint.equals(fingerprint(result)) ? result : null;
+	}
+
+	private static boolean isHighSurrogate(char c) {
+		return c >= '\uD800' && c <= '\uDBFF';
+	}
+
+	private static boolean isLowSurrogate(char c) {
+		return c >= '\uDC00' && c <= '\uDFFF';
+	}
+}
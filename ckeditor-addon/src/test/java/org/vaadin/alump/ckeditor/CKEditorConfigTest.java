@@ -0,0 +1,47 @@
+package org.vaadin.alump.ckeditor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class CKEditorConfigTest {
+
+	@Test
+	public void inPageConfigIsKeptUntilChanged() {
+		CKEditorConfig config = new CKEditorConfig();
+		config.setHeight("300px");
+		String inPageConfig = config.getInPageConfig();
+		Assert.assertSame(inPageConfig, config.getInPageConfig());
+
+		config.addToExtraPlugins("vaadinsave");
+		Assert.assertNotSame(inPageConfig, config.getInPageConfig());
+		Assert.assertTrue(config.getInPageConfig().contains("vaadinsave"));
+	}
+
+	@Test
+	public void fingerprintFollowsContent() {
+		CKEditorConfig a = new CKEditorConfig();
+		a.useCompactTags();
+		CKEditorConfig b = new CKEditorConfig();
+		b.useCompactTags();
+		Assert.assertEquals(a.getFingerprint(), b.getFingerprint());
+
+		b.addKeystrokeMapping(CKEditorConfig.CKEDITOR_KEYSTROKE_CTRL + 83, "vaadinsave");
+		Assert.assertFalse(a.getFingerprint().equals(b.getFingerprint()));
+	}
+
+	@Test
+	public void frozenConfigRejectsChanges() {
+		CKEditorConfig config = new CKEditorConfig();
+		config.setHeight("300px");
+		String fingerprint = config.freeze().getFingerprint();
+		Assert.assertTrue(config.isFrozen());
+		try {
+			config.setHeight("200px");
+			Assert.fail();
+		} catch ( IllegalStateException e ) {
+			// expected
+		}
+		Assert.assertEquals(fingerprint, config.getFingerprint());
+		Assert.assertTrue(config.getInPageConfig().contains("300px"));
+	}
+}
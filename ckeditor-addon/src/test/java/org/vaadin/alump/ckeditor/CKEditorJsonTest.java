@@ -0,0 +1,39 @@
+package org.vaadin.alump.ckeditor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class CKEditorJsonTest {
+
+	@Test
+	public void javaScriptNotationBecomesJson() {
+		Assert.assertEquals("{\"indent\":false,\"breakAfterClose\":true}",
+				CKEditorJson.toJson("{indent : false, breakAfterClose : true}"));
+		Assert.assertEquals("{\"toolbar\":\"Custom\",\"items\":[\"Bold\",\"-\",\"It'alic\"],\"zIndex\":-1.5}",
+				CKEditorJson.toJson("{ toolbar : 'Custom', /* band */ items : ['Bold','-',\"It'alic\",], zIndex : -1.5 }"));
+	}
+
+	@Test
+	public void regexIsTyped() {
+		Assert.assertEquals("{\"$regex\":\"<%.*%>\",\"flags\":\"g\"}", CKEditorJson.toJson("/<%.*%>/g"));
+		Assert.assertEquals("{\"$regex\":\"[/]a\\\\/\",\"flags\":\"\"}", CKEditorJson.toJson("/[/]a\\//"));
+	}
+
+	@Test
+	public void otherJavaScriptIsTyped() {
+		Assert.assertEquals("{\"enterMode\":{\"$js\":\"CKEDITOR.ENTER_BR\"},\"tabSpaces\":4}",
+				CKEditorJson.toJson("{ enterMode : CKEDITOR.ENTER_BR, tabSpaces : 4 }"));
+		Assert.assertEquals("{\"on\":{\"$js\":\"function(e) { f(e, 1); }\"}}",
+				CKEditorJson.toJson("{ on : function(e) { f(e, 1); } }"));
+		Assert.assertEquals("{\"$js\":\"a + b, c\"}", CKEditorJson.toJson("a + b, c"));
+	}
+
+	@Test
+	public void generatedConfigIsJson() {
+		CKEditorConfig config = new CKEditorConfig();
+		config.setupForOpenESignForms("/app", "id", null);
+		String json = CKEditorJson.toJson(config.getInPageConfig());
+		Assert.assertFalse(json.contains("$js"));
+		Assert.assertTrue(json.startsWith("{\"toolbar\":\"Custom\","));
+	}
+}
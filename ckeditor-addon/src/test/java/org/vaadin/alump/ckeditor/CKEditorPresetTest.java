@@ -0,0 +1,43 @@
+package org.vaadin.alump.ckeditor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class CKEditorPresetTest {
+
+	@Test
+	public void derivedPresetLeavesBaseUnchanged() {
+		CKEditorPreset base = CKEditorPreset.builder()
+				.configure(config -> config.addToExtraPlugins("vaadinsave"))
+				.build();
+		CKEditorPreset derived = base.derive()
+				.configure(config -> config.addToExtraPlugins("image2"))
+				.build();
+
+		Assert.assertEquals(1, base.getConfig().getExtraPlugins().size());
+		Assert.assertEquals(2, derived.getConfig().getExtraPlugins().size());
+		Assert.assertTrue(derived.getConfig().isFrozen());
+		Assert.assertFalse(base.getFingerprint().equals(derived.getFingerprint()));
+	}
+
+	@Test
+	public void copySharesUntilChanged() {
+		CKEditorConfig config = new CKEditorConfig();
+		config.addProtectedSource("/<%.*%>/g");
+		CKEditorConfig copy = config.copy();
+		Assert.assertEquals(config.getFingerprint(), copy.getFingerprint());
+
+		config.addProtectedSource("/<[a-z]*:.*\\/>/g");
+		Assert.assertEquals(1, copy.getProtectedSource().size());
+		Assert.assertEquals(2, config.getProtectedSource().size());
+	}
+
+	@Test
+	public void registeredPresetIsShared() {
+		CKEditorPreset preset = CKEditorPreset.get("test", () -> CKEditorPreset.builder().build());
+		Assert.assertSame(preset, CKEditorPreset.get("test"));
+		Assert.assertSame(preset, CKEditorPreset.get("test", () -> CKEditorPreset.builder().build()));
+		CKEditorPreset.unregister("test");
+		Assert.assertNull(CKEditorPreset.get("test"));
+	}
+}
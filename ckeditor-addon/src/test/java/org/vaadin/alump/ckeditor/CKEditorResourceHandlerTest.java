@@ -0,0 +1,92 @@
+package org.vaadin.alump.ckeditor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class CKEditorResourceHandlerTest {
+
+	private static final Set<String> BOTH = new HashSet<>(Arrays.asList("br", "gzip"));
+	private static final Set<String> GZIP = Collections.singleton("gzip");
+
+	private static void assertRange(int start, int end, int[] bounds) {
+		Assert.assertEquals(2, bounds.length);
+		Assert.assertEquals(start, bounds[0]);
+		Assert.assertEquals(end, bounds[1]);
+	}
+
+	private static void assertIgnored(int[] bounds) {
+		Assert.assertEquals(0, bounds.length);
+	}
+
+	@Test
+	public void singleRange() {
+		assertRange(0, 9, CKEditorResourceHandler.parseRange("bytes=0-9", 100));
+		assertRange(90, 99, CKEditorResourceHandler.parseRange("bytes=90-", 100));
+		assertRange(90, 99, CKEditorResourceHandler.parseRange("bytes=-10", 100));
+		assertRange(0, 99, CKEditorResourceHandler.parseRange("bytes=-1000", 100));
+		assertRange(50, 99, CKEditorResourceHandler.parseRange("bytes=50-1000", 100));
+		assertRange(50, 99, CKEditorResourceHandler.parseRange("bytes=50-99999999999999999999", 100));
+	}
+
+	@Test
+	public void malformedRangeIsIgnored() {
+		assertIgnored(CKEditorResourceHandler.parseRange("items=0-9", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=9", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=-", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=a-b", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=--5", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=+1-2", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=9-3", 100));
+	}
+
+	@Test
+	public void multipleRangesAreIgnored() {
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=0-9,20-29", 100));
+		assertIgnored(CKEditorResourceHandler.parseRange("bytes=0-9, -5", 100));
+	}
+
+	@Test
+	public void unsatisfiableRange() {
+		Assert.assertNull(CKEditorResourceHandler.parseRange("bytes=100-", 100));
+		Assert.assertNull(CKEditorResourceHandler.parseRange("bytes=200-300", 100));
+		Assert.assertNull(CKEditorResourceHandler.parseRange("bytes=-0", 100));
+		Assert.assertNull(CKEditorResourceHandler.parseRange("bytes=-5", 0));
+	}
+
+	@Test
+	public void preferredEncoding() {
+		Assert.assertEquals("br", CKEditorResourceHandler.selectEncoding("gzip, deflate, br", BOTH));
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("gzip, deflate", BOTH));
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("GZIP", GZIP));
+		Assert.assertEquals("br", CKEditorResourceHandler.selectEncoding("*", BOTH));
+		Assert.assertNull(CKEditorResourceHandler.selectEncoding(null, BOTH));
+		Assert.assertNull(CKEditorResourceHandler.selectEncoding("deflate", BOTH));
+		Assert.assertNull(CKEditorResourceHandler.selectEncoding("gzip", Collections.<String>emptySet()));
+	}
+
+	@Test
+	public void encodingWithZeroQualityIsRefused() {
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("br;q=0, gzip", BOTH));
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("br; q=0.000, gzip;q=0.5", BOTH));
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("br;Q=0, *", BOTH));
+		Assert.assertNull(CKEditorResourceHandler.selectEncoding("gzip;q=0, *", GZIP));
+		Assert.assertNull(CKEditorResourceHandler.selectEncoding("*;q=0", BOTH));
+		Assert.assertEquals("gzip", CKEditorResourceHandler.selectEncoding("gzip;q=0.001", GZIP));
+	}
+
+	@Test
+	public void ifRangeNeedsStrongMatch() {
+		String etag = "\"abc\"";
+		Assert.assertTrue(CKEditorResourceHandler.isRangeAllowed(null, etag));
+		Assert.assertTrue(CKEditorResourceHandler.isRangeAllowed("\"abc\"", etag));
+		Assert.assertFalse(CKEditorResourceHandler.isRangeAllowed("W/\"abc\"", etag));
+		Assert.assertFalse(CKEditorResourceHandler.isRangeAllowed("\"abd\"", etag));
+		Assert.assertFalse(CKEditorResourceHandler.isRangeAllowed("\"abc-gzip\"", etag));
+		Assert.assertFalse(CKEditorResourceHandler.isRangeAllowed("Wed, 21 Oct 2015 07:28:00 GMT", etag));
+	}
+}
@@ -0,0 +1,103 @@
+package org.vaadin.alump.ckeditor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.vaadin.alump.ckeditor.client.shared.TextChunk;
+
+public class CKEditorTextTransferTest {
+
+	private static final String TEXT = "<p>a:b:c</p><p>äöü</p><p>0123456789</p>";
+	private static final int CHUNK_SIZE = 7;
+	private static final int MAX_LENGTH = 1000;
+
+	private static TextChunk chunk(String text, int index) {
+		return TextChunk.decode(TextChunk.encode(TextChunk.TEXT, 1, text, CHUNK_SIZE, index));
+	}
+
+	@Test
+	public void completeOnlyAfterLastChunk() {
+		int count = TextChunk.getCount(TEXT, CHUNK_SIZE);
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(chunk(TEXT, 0), MAX_LENGTH);
+		Assert.assertEquals(TextChunk.TEXT, transfer.getName());
+		for ( int i = 0; i < count; ++i ) {
+			Assert.assertFalse(transfer.isComplete());
+			Assert.assertEquals(i + 1, transfer.receive(chunk(TEXT, i)));
+		}
+		Assert.assertTrue(transfer.isComplete());
+		Assert.assertEquals(TEXT, transfer.getText());
+	}
+
+	@Test
+	public void duplicateChunkIsIgnored() {
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(chunk(TEXT, 0), MAX_LENGTH);
+		Assert.assertEquals(1, transfer.receive(chunk(TEXT, 0)));
+		Assert.assertEquals(2, transfer.receive(chunk(TEXT, 1)));
+		Assert.assertEquals(2, transfer.receive(chunk(TEXT, 1)));
+		Assert.assertEquals(2, transfer.receive(chunk(TEXT, 0)));
+
+		int count = TextChunk.getCount(TEXT, CHUNK_SIZE);
+		for ( int i = 2; i < count; ++i ) {
+			transfer.receive(chunk(TEXT, i));
+		}
+		Assert.assertEquals(TEXT, transfer.getText());
+	}
+
+	@Test
+	public void gapAnswersExpectedChunk() {
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(chunk(TEXT, 0), MAX_LENGTH);
+		Assert.assertEquals(1, transfer.receive(chunk(TEXT, 0)));
+		Assert.assertEquals(1, transfer.receive(chunk(TEXT, 3)));
+		Assert.assertEquals(2, transfer.receive(chunk(TEXT, 1)));
+		Assert.assertFalse(transfer.isComplete());
+	}
+
+	@Test
+	public void textLongerThanAnnouncedIsRejected() {
+		TextChunk first = chunk(TEXT, 0);
+		TextChunk longer = new TextChunk(first.name, first.transfer, 1, first.count, first.checksum,
+				TEXT.substring(CHUNK_SIZE) + "overflow");
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(first, MAX_LENGTH);
+		Assert.assertEquals(1, transfer.receive(first));
+		Assert.assertEquals(CKEditorTextTransfer.REJECTED, transfer.receive(longer));
+		Assert.assertFalse(transfer.isComplete());
+	}
+
+	@Test
+	public void checksumMismatchYieldsNoText() {
+		String other = TEXT.replace('a', 'x');
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(chunk(TEXT, 0), MAX_LENGTH);
+		int count = TextChunk.getCount(TEXT, CHUNK_SIZE);
+		for ( int i = 0; i < count; ++i ) {
+			TextChunk original = chunk(TEXT, i);
+			TextChunk changed = chunk(other, i);
+			Assert.assertTrue(transfer.belongsTo(original));
+			transfer.receive(new TextChunk(original.name, original.transfer, i, original.count, original.checksum, changed.data));
+		}
+		Assert.assertTrue(transfer.isComplete());
+		Assert.assertNull(transfer.getText());
+	}
+
+	@Test
+	public void overLengthTextIsNotStarted() {
+		TextChunk first = chunk(TEXT, 0);
+		Assert.assertTrue(CKEditorTextTransfer.isTooLarge(first, TEXT.length() - 1));
+		Assert.assertNull(CKEditorTextTransfer.start(first, TEXT.length() - 1));
+		Assert.assertFalse(CKEditorTextTransfer.isTooLarge(first, TEXT.length()));
+		Assert.assertNotNull(CKEditorTextTransfer.start(first, TEXT.length()));
+	}
+
+	@Test
+	public void invalidFirstChunkIsNotStarted() {
+		Assert.assertNull(CKEditorTextTransfer.start(chunk(TEXT, 1), MAX_LENGTH));
+		TextChunk first = chunk(TEXT, 0);
+		Assert.assertNull(CKEditorTextTransfer.start(new TextChunk(first.name, first.transfer, 0, first.count, "x", first.data),
+				MAX_LENGTH));
+	}
+
+	@Test
+	public void chunkOfOtherTransferDoesNotBelong() {
+		CKEditorTextTransfer transfer = CKEditorTextTransfer.start(chunk(TEXT, 0), MAX_LENGTH);
+		Assert.assertFalse(transfer.belongsTo(TextChunk.decode(TextChunk.encode(TextChunk.TEXT, 2, TEXT, CHUNK_SIZE, 1))));
+		Assert.assertFalse(transfer.belongsTo(TextChunk.decode(TextChunk.encode(TextChunk.PATCH, 1, TEXT, CHUNK_SIZE, 1))));
+	}
+}
@@ -0,0 +1,46 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TextChunkTest {
+
+	@Test
+	public void chunksAssembleToText() {
+		String text = "<p>a:b:c</p><p>äöü</p><p>0123456789</p>";
+		int count = TextChunk.getCount(text, 7);
+		StringBuilder assembled = new StringBuilder();
+		for ( int i = 0; i < count; ++i ) {
+			TextChunk chunk = TextChunk.decode(TextChunk.encode("text", 3, text, 7, i));
+			Assert.assertEquals("text", chunk.name);
+			Assert.assertEquals(3, chunk.transfer);
+			Assert.assertEquals(i, chunk.index);
+			Assert.assertEquals(count, chunk.count);
+			Assert.assertEquals(text.length(), chunk.getTotalLength());
+			assembled.append(chunk.data);
+		}
+		Assert.assertEquals(text, assembled.toString());
+		Assert.assertEquals(TextChunk.checksum(text), TextChunk.decode(TextChunk.encode("text", 3, text, 7, 0)).checksum);
+	}
+
+	@Test
+	public void surrogatePairIsNotSplit() {
+		String text = "a\uD83D\uDE00b\uD83D\uDE00";
+		int count = TextChunk.getCount(text, 2);
+		StringBuilder assembled = new StringBuilder();
+		for ( int i = 0; i < count; ++i ) {
+			String data = TextChunk.decode(TextChunk.encode("text", 1, text, 2, i)).data;
+			Assert.assertFalse(data.endsWith("\uD83D"));
+			Assert.assertFalse(data.startsWith("\uDE00"));
+			assembled.append(data);
+		}
+		Assert.assertEquals(text, assembled.toString());
+	}
+
+	@Test
+	public void invalidChunkIsRejected() {
+		Assert.assertNull(TextChunk.decode("text:1:x:2:5.0:data"));
+		Assert.assertNull(TextChunk.decode("text:1:0"));
+		Assert.assertNull(TextChunk.decode(null));
+	}
+}
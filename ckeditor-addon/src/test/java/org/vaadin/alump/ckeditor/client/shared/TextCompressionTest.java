@@ -0,0 +1,46 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TextCompressionTest {
+
+	@Test
+	public void compressedTextIsRestored() {
+		String[] texts = { "", "a", "aaaaaaaaaaaaaaaaaaaa", "<p>äöü € 😀 漢字</p>", "\u0001\u0000￿" };
+		for ( String text : texts ) {
+			Assert.assertEquals(text, TextCompression.decompress(TextCompression.compress(text)));
+		}
+	}
+
+	@Test
+	public void largeHtmlIsEncoded() {
+		StringBuilder html = new StringBuilder();
+		for ( int i = 0; i < 2000; ++i ) {
+			html.append("<p class=\"paragraph\">Paragraph ").append(i).append("</p>\n");
+		}
+		String text = html.toString();
+		String encoded = TextCompression.encode(text, 1000);
+		Assert.assertTrue(TextCompression.isCompressed(encoded));
+		Assert.assertTrue(encoded.length() < text.length() / 4);
+		Assert.assertEquals(text, TextCompression.decode(encoded));
+	}
+
+	@Test
+	public void shortTextIsNotEncoded() {
+		Assert.assertEquals("<p>short</p>", TextCompression.encode("<p>short</p>", 1000));
+		Assert.assertEquals("<p>short</p>", TextCompression.encode("<p>short</p>", 0));
+		Assert.assertEquals("<p>short</p>", TextCompression.decode("<p>short</p>"));
+	}
+
+	@Test
+	public void textStartingWithMarkerStaysUnambiguous() {
+		String text = TextCompression.MARKER + "x";
+		Assert.assertEquals(text, TextCompression.decode(TextCompression.encode(text, 0)));
+	}
+
+	@Test
+	public void invalidDataIsRejected() {
+		Assert.assertNull(TextCompression.decode(TextCompression.MARKER + "////////////////"));
+	}
+}
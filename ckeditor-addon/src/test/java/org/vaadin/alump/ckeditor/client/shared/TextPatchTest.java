@@ -0,0 +1,51 @@
+package org.vaadin.alump.ckeditor.client.shared;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TextPatchTest {
+
+	@Test
+	public void patchRestoresResult() {
+		String[][] cases = {
+				{ "", "" },
+				{ "", "<p>new</p>" },
+				{ "<p>old</p>", "" },
+				{ "<p>Hello World</p>", "<p>Hello brave World</p>" },
+				{ "<p>Hello brave World</p>", "<p>Hello World</p>" },
+				{ "<p>aaaa</p>", "<p>aaaaa</p>" },
+				{ "<p>a:b:c</p>", "<p>a:x:y:c</p>" },
+				{ "<p>😀</p>", "<p>😁</p>" },
+		};
+		for ( String[] c : cases ) {
+			Assert.assertEquals(c[1], TextPatch.apply(c[0], TextPatch.create(c[0], c[1])));
+		}
+	}
+
+	@Test
+	public void patchOnlyCarriesChangedRegion() {
+		StringBuilder document = new StringBuilder();
+		for ( int i = 0; i < 10000; ++i ) {
+			document.append("<p>Paragraph ").append(i).append("</p>");
+		}
+		String base = document.toString();
+		String result = base.replace("<p>Paragraph 5000</p>", "<p>Paragraph 5000, changed</p>");
+		String patch = TextPatch.create(base, result);
+		Assert.assertTrue(patch.length() < 100);
+		Assert.assertEquals(result, TextPatch.apply(base, patch));
+	}
+
+	@Test
+	public void surrogatePairsAreNotSplit() {
+		String patch = TextPatch.create("<p>😀</p>", "<p>😁</p>");
+		Assert.assertTrue(patch.endsWith(":😁"));
+	}
+
+	@Test
+	public void patchForOtherBaseIsRejected() {
+		String patch = TextPatch.create("<p>one</p>", "<p>two</p>");
+		Assert.assertNull(TextPatch.apply("<p>three</p>", patch));
+		Assert.assertNull(TextPatch.apply("<p>one</p>", "garbage"));
+		Assert.assertNull(TextPatch.apply("<p>one</p>", null));
+	}
+}